@@ -13,6 +13,34 @@ public enum Configuration {
 
     KVS_CONFIG_KVS_RPC_URL("kvs.rpc.uri", "tcp://127.0.0.1:9527"),
     KVS_CONFIG_KVS_CLEAR_DATA("kvs.clear.data", StringValue.Zero),
+
+    KVS_CONFIG_KVS_ONLINE("kvs.online", StringValue.FALSE_FALG),
+    KVS_CONFIG_KVS_PORT("kvs.port", "9571"),
+    KVS_CONFIG_KVS_INSTANCE("kvs.instance", "16"),
+    KVS_CONFIG_KVS_SERVER_LOOPS("kvs.server.loops", StringValue.Empty),
+    KVS_CONFIG_KVS_DATA_COUNT("kvs.data.count", StringValue.Empty),
+    KVS_CONFIG_KVS_READ_BLOCK_SIZE("kvs.read.block.size", StringValue.Empty),
+    KVS_CONFIG_KVS_BLOCK_CACHE_SIZE("kvs.block.cache.size", StringValue.Empty),
+    KVS_CONFIG_KVS_DATA_PATH("kvs.data.path", StringValue.Empty),
+    KVS_CONFIG_KVS_DATA_PATHS("kvs.data.paths", StringValue.Empty),
+    KVS_CONFIG_KVS_DATA_PLACEMENT("kvs.data.placement", "round"),
+    KVS_CONFIG_KVS_INDEX_PATH("kvs.index.path", StringValue.Empty),
+    KVS_CONFIG_KVS_IO_ENGINE("kvs.io.engine", "blocking"),
+    KVS_CONFIG_KVS_INDEX_SORTED("kvs.index.sorted", StringValue.FALSE_FALG),
+    KVS_CONFIG_KVS_INDEX_ASYNC("kvs.index.async", StringValue.FALSE_FALG),
+    KVS_CONFIG_KVS_CLIENT_THIN("kvs.client.thin", StringValue.FALSE_FALG),
+    KVS_CONFIG_KVS_READ_ADAPTIVE("kvs.read.adaptive", StringValue.TRUE_FALG),
+    KVS_CONFIG_KVS_CLIENT_CONNECTIONS("kvs.client.connections", StringValue.Zero),
+    KVS_CONFIG_KVS_CLIENT_NIO("kvs.client.nio", StringValue.FALSE_FALG),
+    KVS_CONFIG_KVS_COMMIT_SIZE("kvs.commit.size", StringValue.Empty),
+    KVS_CONFIG_KVS_COMMIT_INTERVAL("kvs.commit.interval", StringValue.Zero),
+    KVS_CONFIG_KVS_COMMIT_SYNC("kvs.commit.sync", "none"),
+    KVS_CONFIG_KVS_COMMIT_CHECKPOINT("kvs.commit.checkpoint", StringValue.Empty),
+    KVS_CONFIG_KVS_SEGMENT_SIZE("kvs.segment.size", StringValue.Zero),
+    KVS_CONFIG_KVS_COMPACT_RATIO("kvs.compact.ratio", "50"),
+    KVS_CONFIG_KVS_COMPACT_INTERVAL("kvs.compact.interval", "1000"),
+    KVS_CONFIG_KVS_COMPRESS("kvs.compress", "none"),
+    KVS_CONFIG_KVS_COMPRESS_WIRE("kvs.compress.wire", StringValue.FALSE_FALG),
         
     ;
     
@@ -4,6 +4,7 @@ public enum ExecuteMode {
 	
 	KVSERVICE_EXAMPLE("kvservice.example", "com.huawei.hwcloud.tarus.kvstore.service.example.KVService"),
     KVSERVICE_RACE("kvservice.race", "com.huawei.hwcloud.tarus.kvstore.service.race.KVService"),
+    KVSERVICE_SHARED("kvservice.shared", "com.huawei.hwcloud.tarus.kvstore.service.race.SharedKVService"),
     KVSTORE_EXAMPLE("kvstore.example", "com.huawei.hwcloud.tarus.kvstore.store.example.KVStoreServer"),
     KVSTORE_RACE("kvstore.race", "com.huawei.hwcloud.tarus.kvstore.store.race.KVStoreServer"),
 	
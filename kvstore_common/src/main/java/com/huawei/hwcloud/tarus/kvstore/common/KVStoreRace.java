@@ -27,6 +27,29 @@ public interface KVStoreRace {
 	 */
 	public long get(final String key, final Ref<byte[]> val) throws KVSException;
 	
+	/**
+	 * read values of several keys
+	 * @param keys
+	 * @param vals receives a copy of each value, null if the key does not exist
+	 * @return count of keys found
+	 * @throws EngineException
+	 */
+	public default long getAll(final String[] keys, final byte[][] vals) throws KVSException {
+		long found = 0;
+		Ref<byte[]> val = Ref.of(byte[].class);
+		for (int i = 0; i < keys.length; i++) {
+			get(keys[i], val);
+			byte[] v = val.getValue();
+			if (v == null) {
+				vals[i] = null;
+			} else {
+				vals[i] = v.clone();
+				found++;
+			}
+		}
+		return found;
+	}
+	
 	/**
 	 * close Engine
 	 */
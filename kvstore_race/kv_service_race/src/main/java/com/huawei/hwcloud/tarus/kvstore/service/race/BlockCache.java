@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.nio.ByteBuffer;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
+
+/**
+ * Segmented lru cache of the blocks read from the server.
+ * <p>
+ * A block enters the probation list when it is read, and is promoted to the
+ * protected list only when it is referenced again after some other block was
+ * accessed, the consecutive gets of one block are a single reference. A scan
+ * therefore only cycles through probation and can not flush the protected
+ * blocks. The victim is the tail of probation, or the tail of protected when
+ * probation is empty. All operations are O(1).
+ * <p>
+ * The blocks are kept in direct memory, out of the heap, the responses are
+ * read into them from the connection.
+ *
+ * @author: wangkai
+ **/
+final class BlockCache {
+
+    final LRUItem[] items;
+    final LRUItem[] blocks;
+    final LRUItem   probation = new LRUItem(0);
+    final LRUItem   protect   = new LRUItem(0);
+    final int       protect_max;
+
+    int     protect_size;
+    LRUItem last;
+    long    hit;
+    long    miss;
+    long    evict;
+
+    BlockCache(long cache_size, int block_count, int readers) {
+        // a cache of no blocks, the one of a thin client, takes no memory
+        int size = block_count == 0 ? 0 : (int) Math.max(cache_size / READ_BLOCK_SIZE, min_items(readers));
+        this.items = new LRUItem[size];
+        this.blocks = new LRUItem[block_count];
+        this.protect_max = size - Math.max(1, size / 4);
+        probation.prev = probation.next = probation;
+        protect.prev = protect.next = protect;
+        for (int i = 0; i < size; i++) {
+            LRUItem item = new LRUItem(READ_BLOCK_SIZE);
+            items[i] = item;
+            link_lru(probation, item);
+        }
+    }
+
+    /**
+     * the items a cache holds at least: every reader of a shared client may
+     * hold an evicted item, a client of a single reader evicts the items of a
+     * batch or of a read ahead together
+     */
+    static int min_items(int readers) {
+        return readers == 0 ? Math.max(READ_BATCH_MAX, READ_AHEAD + 2) : readers + 1;
+    }
+
+    /**
+     * split the cache into stripes that are locked one by one, block b is
+     * cached by stripe b % stripes, at most CACHE_STRIPES of them and as many
+     * as keep {@link #min_items} in each within the cache size. A client of a
+     * single reader gets a single cache.
+     */
+    static BlockCache[] stripes(long cache_size, int block_count, int readers) {
+        int          items = (int) (cache_size / READ_BLOCK_SIZE);
+        int          count = readers == 0 ? 1 : Math.max(1, Math.min(CACHE_STRIPES, items / min_items(readers)));
+        BlockCache[] res   = new BlockCache[count];
+        for (int i = 0; i < count; i++) {
+            res[i] = new BlockCache(cache_size / count, block_count, readers);
+        }
+        return res;
+    }
+
+    static String stat(BlockCache[] caches) {
+        long hit   = 0;
+        long miss  = 0;
+        long evict = 0;
+        for (BlockCache cache : caches) {
+            hit += cache.hit;
+            miss += cache.miss;
+            evict += cache.evict;
+        }
+        return "cache hit: " + hit + ", miss: " + miss + ", evict: " + evict + ", stripes: " + caches.length;
+    }
+
+    LRUItem get(int block) {
+        LRUItem item = blocks[block];
+        if (item == null) {
+            miss++;
+            return null;
+        }
+        hit++;
+        if (item != last) {
+            unlink(item);
+            if (!item.protect) {
+                item.protect = true;
+                if (++protect_size > protect_max) {
+                    LRUItem demote = protect.next;
+                    unlink(demote);
+                    demote.protect = false;
+                    protect_size--;
+                    link_mru(probation, demote);
+                }
+            }
+            link_mru(protect, item);
+            last = item;
+        }
+        return item;
+    }
+
+    boolean contains(int block) {
+        return blocks[block] != null;
+    }
+
+    int block_count() {
+        return blocks.length;
+    }
+
+    /**
+     * detach the victim from the cache, it belongs to the caller until
+     * {@link #put} or {@link #release}
+     */
+    LRUItem evict() {
+        LRUItem item = probation.next;
+        if (item == probation) {
+            item = protect.next;
+        }
+        unlink(item);
+        if (item.protect) {
+            item.protect = false;
+            protect_size--;
+        }
+        if (item.index != -1) {
+            blocks[item.index] = null;
+            item.index = -1;
+            evict++;
+        }
+        if (item == last) {
+            last = null;
+        }
+        return item;
+    }
+
+    void put(LRUItem item, int block) {
+        item.set_index(block);
+        blocks[block] = item;
+        link_mru(probation, item);
+        last = item;
+    }
+
+    // give back an item whose read failed, it is the first one to be reused
+    void release(LRUItem item) {
+        link_lru(probation, item);
+    }
+
+    private static void unlink(LRUItem item) {
+        item.prev.next = item.next;
+        item.next.prev = item.prev;
+        item.prev = item.next = null;
+    }
+
+    // head.next is the lru end of a list, head.prev the mru end
+    private static void link_lru(LRUItem head, LRUItem item) {
+        item.next = head.next;
+        item.prev = head;
+        head.next.prev = item;
+        head.next = item;
+    }
+
+    private static void link_mru(LRUItem head, LRUItem item) {
+        item.prev = head.prev;
+        item.next = head;
+        head.prev.next = item;
+        head.prev = item;
+    }
+
+    static final class LRUItem {
+
+        final ByteBuffer buf;
+        int              index = -1;
+        long             start_pos;
+        boolean          protect;
+        LRUItem          prev;
+        LRUItem          next;
+
+        LRUItem(int size) {
+            this.buf = size == 0 ? null : ByteBuffer.allocateDirect(size);
+        }
+
+        void set_index(int index) {
+            this.index = index;
+            this.start_pos = 1L * index * READ_BLOCK_SIZE;
+        }
+
+        public void read(long pos, byte[] res) {
+            copy(buf, (int) (pos - start_pos), res);
+        }
+
+        /**
+         * a read only view of the value at pos, it shares the memory of the
+         * block and is only valid while the block stays in this item
+         */
+        ByteBuffer slice(long pos) {
+            ByteBuffer dup = buf.duplicate();
+            int        off = (int) (pos - start_pos);
+            dup.limit(off + VALUE_LEN);
+            dup.position(off);
+            return dup.slice().asReadOnlyBuffer();
+        }
+
+        static void copy(ByteBuffer buf, int off, byte[] res) {
+            ByteBuffer dup = buf.duplicate();
+            dup.position(off);
+            dup.get(res, 0, VALUE_LEN);
+        }
+    }
+
+}
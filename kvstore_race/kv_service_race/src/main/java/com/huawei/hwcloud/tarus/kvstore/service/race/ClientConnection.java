@@ -0,0 +1,410 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
+
+/**
+ * A connection of the client to the server, the client talks to it through
+ * its streams.
+ * <p>
+ * The socket connection is a blocking {@link Socket}. The nio connection is
+ * a non blocking {@link SocketChannel} with TCP_NODELAY, the bytes go through
+ * direct buffers of the connection, and a read or write that can not go on
+ * parks its thread for at most TIMEOUT, until one of the selectors shared by
+ * all the nio connections finds the channel ready.
+ *
+ * @author: wangkai
+ **/
+abstract class ClientConnection implements Closeable {
+
+    // the compressed block responses of the connection, decompressed from here into the direct buffer of the block
+    private byte[] packed_buf;
+
+    static ClientConnection open(InetSocketAddress address) {
+        try {
+            return CLIENT_NIO ? new NioConnection(address) : new SocketConnection(address);
+        } catch (IOException e) {
+            printException(e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    abstract InputStream input();
+
+    /**
+     * read len bytes into dst from position 0, the nio connection receives
+     * them straight into dst once its own buffer is drained
+     *
+     * @return len, or -1 if the connection failed
+     */
+    abstract int read(ByteBuffer dst, int len);
+
+    abstract OutputStream output();
+
+    byte[] packed_buf() {
+        byte[] buf = packed_buf;
+        if (buf == null) {
+            buf = new byte[4 + Lz4.max_length(READ_BLOCK_SIZE)];
+            packed_buf = buf;
+        }
+        return buf;
+    }
+
+    static final class SocketConnection extends ClientConnection {
+
+        final Socket       socket;
+        final InputStream  input;
+        final OutputStream output;
+        final byte[]       chunk = new byte[DATA_4K * 16];
+
+        SocketConnection(InetSocketAddress address) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setSoTimeout((int) TIMEOUT);
+                socket.connect(address);
+                this.input = socket.getInputStream();
+                this.output = socket.getOutputStream();
+            } catch (IOException e) {
+                com.firenio.common.Util.close(socket);
+                throw e;
+            }
+            this.socket = socket;
+        }
+
+        @Override
+        InputStream input() {
+            return input;
+        }
+
+        @Override
+        OutputStream output() {
+            return output;
+        }
+
+        @Override
+        int read(ByteBuffer dst, int len) {
+            byte[] chunk = this.chunk;
+            dst.clear();
+            try {
+                for (int remain = len; remain > 0; ) {
+                    int r = input.read(chunk, 0, Math.min(remain, chunk.length));
+                    if (r == -1) {
+                        return -1;
+                    }
+                    dst.put(chunk, 0, r);
+                    remain -= r;
+                }
+                return len;
+            } catch (IOException e) {
+                printException(e);
+                return -1;
+            }
+        }
+
+        @Override
+        public void close() {
+            com.firenio.common.Util.close(socket);
+        }
+
+    }
+
+    static final class NioConnection extends ClientConnection {
+
+        final SocketChannel channel;
+        final NioSelector   selector = NioSelector.next();
+        // the bytes received and not consumed yet are between position and limit
+        final ByteBuffer    read_buf  = ByteBuffer.allocateDirect(DATA_256K);
+        final ByteBuffer    write_buf = ByteBuffer.allocateDirect(DATA_256K);
+        final InputStream   input     = new NioInput();
+        final OutputStream  output    = new NioOutput();
+
+        // the selection key and the ops to wait for, the key is used by the selector thread only
+        SelectionKey    key;
+        volatile int    ops;
+        volatile Thread waiter;
+        volatile boolean ready;
+        volatile boolean closed;
+
+        NioConnection(InetSocketAddress address) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, DATA_1M);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, DATA_1M);
+                channel.socket().connect(address, (int) Math.min(TIMEOUT, Integer.MAX_VALUE));
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                com.firenio.common.Util.close(channel);
+                throw e;
+            }
+            this.channel = channel;
+            this.read_buf.flip();
+        }
+
+        /**
+         * park until the selector finds the channel ready for ops, a wake up
+         * may be early, the caller tries the channel again
+         */
+        private void wait_ready(int ops) throws IOException {
+            long deadline = System.nanoTime() + TIMEOUT * 1000_000L;
+            this.ready = false;
+            this.waiter = Thread.currentThread();
+            this.ops = ops;
+            selector.interest(this);
+            for (; !ready; ) {
+                if (closed) {
+                    // closed by another thread, fail like a closed socket does
+                    throw new IOException("connection closed");
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new SocketTimeoutException("no " + (ops == SelectionKey.OP_READ ? "read" : "write") + " in " + TIMEOUT + "ms");
+                }
+                LockSupport.parkNanos(this, left);
+            }
+        }
+
+        // on the selector thread
+        void register(Selector selector) {
+            try {
+                if (key == null) {
+                    key = channel.register(selector, ops, this);
+                } else {
+                    key.interestOps(ops);
+                }
+            } catch (ClosedChannelException | CancelledKeyException e) {
+                wake();
+            }
+        }
+
+        void wake() {
+            ready = true;
+            LockSupport.unpark(waiter);
+        }
+
+        // receive more bytes when all the received ones were consumed, -1 at the end of the stream
+        private int fill() throws IOException {
+            ByteBuffer read_buf = this.read_buf;
+            if (read_buf.hasRemaining()) {
+                return read_buf.remaining();
+            }
+            read_buf.clear();
+            for (; ; ) {
+                int r = channel.read(read_buf);
+                if (r > 0) {
+                    read_buf.flip();
+                    return r;
+                }
+                if (r == -1) {
+                    read_buf.flip();
+                    return -1;
+                }
+                wait_ready(SelectionKey.OP_READ);
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer write_buf = this.write_buf;
+            for (; len > 0; ) {
+                int n = Math.min(len, write_buf.capacity());
+                write_buf.clear();
+                write_buf.put(b, off, n);
+                write_buf.flip();
+                for (; write_buf.hasRemaining(); ) {
+                    if (channel.write(write_buf) == 0) {
+                        wait_ready(SelectionKey.OP_WRITE);
+                    }
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        InputStream input() {
+            return input;
+        }
+
+        @Override
+        OutputStream output() {
+            return output;
+        }
+
+        @Override
+        int read(ByteBuffer dst, int len) {
+            ByteBuffer read_buf = this.read_buf;
+            dst.clear();
+            dst.limit(len);
+            if (read_buf.hasRemaining()) {
+                int n     = Math.min(len, read_buf.remaining());
+                int limit = read_buf.limit();
+                read_buf.limit(read_buf.position() + n);
+                dst.put(read_buf);
+                read_buf.limit(limit);
+            }
+            try {
+                for (; dst.hasRemaining(); ) {
+                    int r = channel.read(dst);
+                    if (r == -1) {
+                        return -1;
+                    }
+                    if (r == 0) {
+                        wait_ready(SelectionKey.OP_READ);
+                    }
+                }
+                return len;
+            } catch (IOException e) {
+                printException(e);
+                return -1;
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            com.firenio.common.Util.close(channel);
+            wake();
+        }
+
+        final class NioInput extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                if (fill() == -1) {
+                    return -1;
+                }
+                return read_buf.get() & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (fill() == -1) {
+                    return -1;
+                }
+                int n = Math.min(len, read_buf.remaining());
+                read_buf.get(b, off, n);
+                return n;
+            }
+
+        }
+
+        final class NioOutput extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                NioConnection.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                NioConnection.this.write(b, off, len);
+            }
+
+        }
+
+    }
+
+    /**
+     * A selector thread shared by the nio connections, the connections are
+     * spread over NIO_SELECTORS of them. It only wakes the thread parked on a
+     * ready channel, the call goes on in that thread.
+     */
+    static final class NioSelector extends Thread {
+
+        static final int           NIO_SELECTORS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        static final NioSelector[] SELECTORS     = new NioSelector[NIO_SELECTORS];
+        static final AtomicInteger NEXT          = new AtomicInteger();
+
+        final Selector             selector;
+        final Queue<NioConnection> changes = new ConcurrentLinkedQueue<>();
+
+        NioSelector(int index) throws IOException {
+            super("kvs-nio-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        static synchronized NioSelector next() {
+            int index = (NEXT.getAndIncrement() & Integer.MAX_VALUE) % NIO_SELECTORS;
+            if (SELECTORS[index] == null) {
+                try {
+                    NioSelector selector = new NioSelector(index);
+                    selector.start();
+                    SELECTORS[index] = selector;
+                } catch (IOException e) {
+                    printException(e);
+                    throw new RuntimeException(e);
+                }
+            }
+            return SELECTORS[index];
+        }
+
+        // the key of a channel is changed on this thread only, select holds it
+        void interest(NioConnection conn) {
+            changes.offer(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            for (; ; ) {
+                try {
+                    selector.select();
+                    for (NioConnection conn; (conn = changes.poll()) != null; ) {
+                        conn.register(selector);
+                    }
+                    Set<SelectionKey> keys = selector.selectedKeys();
+                    for (SelectionKey key : keys) {
+                        if (key.isValid()) {
+                            key.interestOps(0);
+                        }
+                        ((NioConnection) key.attachment()).wake();
+                    }
+                    keys.clear();
+                } catch (Throwable e) {
+                    printException(e);
+                }
+            }
+        }
+
+    }
+
+}
@@ -1,13 +1,19 @@
 package com.huawei.hwcloud.tarus.kvstore.service.race;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.firenio.common.ByteUtil;
 import com.firenio.common.Unsafe;
@@ -15,14 +21,26 @@ import com.firenio.log.LoggerFactory;
 import com.huawei.hwcloud.tarus.kvstore.common.KVStoreRace;
 import com.huawei.hwcloud.tarus.kvstore.common.Ref;
 import com.huawei.hwcloud.tarus.kvstore.exception.KVSException;
+import com.huawei.hwcloud.tarus.kvstore.service.race.BlockCache.LRUItem;
 
 import static com.huawei.hwcloud.tarus.kvstore.service.race.ActionType.*;
 import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
 import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
 
+/**
+ * The client of one partition. With kvs.client.connections, or when created
+ * by {@link SharedKVService}, the gets go over a pool of read connections and
+ * the service may be shared by several threads, the sets, flush and close
+ * stay on the first connection and are serialized. The index is read under a
+ * read lock and the block cache is split into stripes locked one by one.
+ */
 public class KVService implements KVStoreRace {
 
     static final ThreadLocal<byte[]> READ_VAL_BUF = ThreadLocal.withInitial(KVService::newREAD_VAL_BUF);
+    // meta of the persisted index map: records, the key of the last record, closed cleanly
+    static final int                 META_RECORDS = 0;
+    static final int                 META_FENCE   = 1;
+    static final int                 META_CLEAN   = 2;
     static final boolean             step1;
     static final boolean             step2;
 
@@ -34,29 +52,69 @@ public class KVService implements KVStoreRace {
         step2 = "verify_perf1".equals(f2 + f1);
     }
 
-    final LongIntMap        index_map  = new LongIntMap(DATA_COUNT);
-    final byte[]            send_buf   = new byte[1024 * 8];
-    final byte[]            read_buf   = new byte[DATA_1M];
-    final LRUItem[]         ALL_CACHE  = new LRUItem[DATA_COUNT / DATA_COUNT_PER_BLOCK];
-    final LRUItem[]         REAL_CACHE = new LRUItem[LRU_SIZE];
+    final byte[]            send_buf     = new byte[1024 * 8];
+    final byte[]            batch_buf    = new byte[FRAME_HEADER + 4 + SET_BATCH * (KEY_LEN + VALUE_LEN)];
+    final byte[]            read_buf     = new byte[DATA_1M];
+    final boolean           shared;
+    final int               read_connections;
+    final BlockCache[]      caches;
+    final BlockCache        cache;
+    final LRUItem[]         READ_ITEMS   = new LRUItem[READ_BATCH_MAX];
+    final int[]             READ_BLOCKS  = new int[READ_BATCH_MAX];
+    final LRUItem[]         AHEAD_ITEMS  = new LRUItem[Math.max(READ_AHEAD, 1)];
+    final int[]             AHEAD_BLOCKS = new int[Math.max(READ_AHEAD, 1)];
     final InetSocketAddress server_address;
+    final Object            index_lock   = new Object();
+    final Object            set_lock     = new Object();
+    final Object            close_lock   = new Object();
+    final Lock              index_read;
+    final Lock              index_write;
+    // the record count after each set batch in flight, from the oldest at ack_next
+    final int[]             batch_ends   = new int[SET_WINDOW];
 
-    Socket       socket;
-    OutputStream socketOutput;
-    InputStream  socketInput;
+    DirectLongIntMap              index_map;
+    BlockingQueue<ReadConnection> read_pool;
+    ReadConnection[]              read_conns;
+    volatile boolean              read_pool_closed;
+    SortedIndex      sorted;
+    LongIntMap       tail_map;
+    ClientConnection conn;
+    OutputStream     socketOutput;
+    InputStream      socketInput;
 
-    int           index;
-    int           index_size;
-    boolean       init;
-    AtomicInteger get_log_count = new AtomicInteger();
-    AtomicInteger set_log_count = new AtomicInteger();
+    int              index;
+    int              index_size;
+    long             last_key;
+    int              set_pending;
+    int              batch_size;
+    int              ahead_size;
+    int              ahead_count;
+    int              value_count;
+    int              last_miss_block = -1;
+    int              ack_next;
+    volatile int     acked_size;
+    boolean          init;
+    volatile boolean index_loading;
+    volatile boolean index_failed;
+    AtomicInteger    get_log_count = new AtomicInteger();
+    AtomicInteger    set_log_count = new AtomicInteger();
 
     public KVService() {
-        String host = get_server_host();
+        this(READ_CONNECTIONS > 0);
+    }
+
+    KVService(boolean shared) {
+        String                 host       = get_server_host();
+        int                    block_size = (DATA_COUNT + DATA_COUNT_PER_BLOCK - 1) / DATA_COUNT_PER_BLOCK;
+        ReentrantReadWriteLock index_rw   = new ReentrantReadWriteLock();
         this.server_address = new InetSocketAddress(host, PORT);
-        for (int i = 0; i < LRU_SIZE; i++) {
-            REAL_CACHE[i] = new LRUItem();
-        }
+        this.shared = shared;
+        this.read_connections = shared ? Math.max(READ_CONNECTIONS, 1) : 0;
+        // a thin client gets its values from the server by key, it reads no block
+        this.caches = BlockCache.stripes(CLIENT_THIN ? 0 : BLOCK_CACHE_SIZE, CLIENT_THIN ? 0 : block_size, read_connections);
+        this.cache = caches[0];
+        this.index_read = index_rw.readLock();
+        this.index_write = index_rw.writeLock();
     }
 
     static String get_server_host() {
@@ -91,56 +149,295 @@ public class KVService implements KVStoreRace {
         this.index = thread_num;
         log("init ..." + index);
         this.try_connect();
-        write_action(ACTION_INIT);
-        byte[] read_array = read_buf;
-        int    read       = do_read(read_array, 8);
-        if (read == -1) {
+        boolean res;
+        if (CLIENT_THIN) {
+            res = init_thin();
+        } else if (INDEX_ASYNC) {
+            res = init_async(dir);
+        } else {
+            res = init_index(dir, socketInput, socketOutput, read_buf, null);
+            if (res) {
+                log("received server res: init finish: " + index_size + ", inst_id: " + index);
+            } else {
+                log("init read error");
+            }
+        }
+        this.acked_size = index_size;
+        if (res && shared) {
+            open_read_pool();
+        }
+        return res;
+    }
+
+    // the partition is open when this runs, the read connections only read
+    private void open_read_pool() {
+        ReadConnection[]              conns = new ReadConnection[read_connections];
+        BlockingQueue<ReadConnection> pool  = new ArrayBlockingQueue<>(read_connections);
+        for (int i = 0; i < read_connections; i++) {
+            ReadConnection conn = new ReadConnection(server_address, index);
+            conn.connect();
+            conns[i] = conn;
+            pool.offer(conn);
+        }
+        this.read_conns = conns;
+        this.read_pool = pool;
+        this.read_pool_closed = false;
+        log("open read connections: " + read_connections + ", cache stripes: " + caches.length + ", inst_id: " + index);
+    }
+
+    // a thin client keeps no index, the server looks the keys up
+    private boolean init_thin() {
+        byte[] send_buf = this.send_buf;
+        put_frame_header(send_buf, index, ACTION_INIT_TAIL, 12);
+        put_int_le(send_buf, -1, FRAME_HEADER);
+        ByteUtil.putLongLE(send_buf, 0, FRAME_HEADER + 4);
+        do_write(send_buf, 0, FRAME_HEADER + 12);
+        if (do_read(read_buf, 12) == -1) {
             log("init read error");
             return false;
         }
-        int len = ByteUtil.getInt(read_array, 4);
-        log("init len: " + len);
-        LongIntMap index_map  = this.index_map;
-        int        read1      = 0;
-        int        block      = DATA_256K;
-        int        count      = len / block;
-        int        remain     = len % block;
-        int        index_size = 0;
-        for (int i = 0; i < count; i++) {
-            read = do_read(read_array, block);
-            if (read == -1) {
-                log("init read error");
+        this.index_size = ByteUtil.getIntLE(read_buf, 4);
+        log("init thin client, records: " + index_size + ", inst_id: " + index);
+        return true;
+    }
+
+    /**
+     * load the index over a second connection in the background. init returns
+     * as soon as the server opened the partition, the gets go to the server
+     * by key until the whole index is loaded, as a key set more than once
+     * would resolve to an older record until the chunk with its last record
+     * arrives. A set waits for the whole index. If the load fails the gets
+     * stay on the server and the sets fail.
+     */
+    private boolean init_async(String dir) {
+        CountDownLatch opened = new CountDownLatch(1);
+        this.index_loading = true;
+        this.index_failed = false;
+        Thread loader = new Thread(() -> {
+            ClientConnection conn = null;
+            boolean          ok   = false;
+            try {
+                conn = ClientConnection.open(server_address);
+                byte[] read_array = new byte[DATA_256K];
+                ok = init_index(dir, conn.input(), conn.output(), read_array, opened);
+                if (ok) {
+                    log("received server res: init finish: " + index_size + ", inst_id: " + index);
+                } else {
+                    log("init read error, inst_id: " + index);
+                }
+            } catch (Exception e) {
+                printException(e);
+            } finally {
+                if (conn != null) {
+                    com.firenio.common.Util.close(conn);
+                }
+                // before the count down, a failure before the partition opened fails the init
+                index_failed = !ok;
+                opened.countDown();
+                synchronized (index_lock) {
+                    index_loading = false;
+                    index_lock.notifyAll();
+                }
+            }
+        }, "kvs-index-" + index);
+        loader.setDaemon(true);
+        loader.start();
+        try {
+            opened.await();
+        } catch (InterruptedException e) {
+            printException(e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (index_failed) {
+            log("init index failed, inst_id: " + index);
+            return false;
+        }
+        return true;
+    }
+
+    // opened is counted down once the server answered, the partition is open from then on
+    private boolean init_index(String dir, InputStream in, OutputStream out, byte[] read_array, CountDownLatch opened) {
+        return INDEX_SORTED ? init_sorted(in, out, read_array, opened) : init_map(dir, in, out, read_array, opened);
+    }
+
+    private boolean init_map(String dir, InputStream in, OutputStream out, byte[] read_array, CountDownLatch opened) {
+        DirectLongIntMap index_map = open_index_map(dir);
+        byte[]           req       = new byte[FRAME_HEADER + 12];
+        int              start;
+        int              len;
+        if (index_map.persistent()) {
+            boolean reuse   = index_map.loaded() && index_map.get_meta(META_CLEAN) == 1;
+            int     records = reuse ? (int) index_map.get_meta(META_RECORDS) : 0;
+            index_map.set_meta(META_CLEAN, 0);
+            put_frame_header(req, index, ACTION_INIT_TAIL, 12);
+            put_int_le(req, records, FRAME_HEADER);
+            ByteUtil.putLongLE(req, reuse ? index_map.get_meta(META_FENCE) : 0, FRAME_HEADER + 4);
+            do_write(out, req, 0, FRAME_HEADER + 12);
+            if (do_read(in, read_array, 12) == -1) {
                 return false;
             }
-            int i_size = block / 8;
-            for (int j = 0; j < i_size; j++) {
-                index_map.put(ByteUtil.getLongLE(read_array, j << 3), index_size++);
+            start = ByteUtil.getIntLE(read_array, 4);
+            len = ByteUtil.getIntLE(read_array, 8);
+            if (start != records || !reuse) {
+                log("local index not reusable, records: " + records + ", inst_id: " + index);
+                index_map.clear();
+                start = 0;
+            }
+        } else {
+            put_frame_header(req, index, ACTION_INIT, 0);
+            do_write(out, req, 0, FRAME_HEADER);
+            if (do_read(in, read_array, 8) == -1) {
+                return false;
             }
+            start = 0;
+            len = ByteUtil.getInt(read_array, 4);
         }
-        if (remain > 0) {
-            read = do_read(read_array, remain);
-            if (read == -1) {
-                log("init read error");
+        synchronized (index_lock) {
+            this.index_map = index_map;
+            this.index_size = start;
+        }
+        if (opened != null) {
+            opened.countDown();
+        }
+        log("init start: " + start + ", len: " + len);
+        return read_index(in, read_array, start, len, start > 0 ? index_map.get_meta(META_FENCE) : 0);
+    }
+
+    // the sorted index of the server is searched in place, only the records after it are hashed
+    private boolean init_sorted(InputStream in, OutputStream out, byte[] read_array, CountDownLatch opened) {
+        byte[] req = new byte[FRAME_HEADER];
+        put_frame_header(req, index, ACTION_INIT_SORT, 0);
+        do_write(out, req, 0, FRAME_HEADER);
+        if (do_read(in, read_array, 12) == -1) {
+            return false;
+        }
+        int sorted_len = ByteUtil.getIntLE(read_array, 4);
+        int len        = ByteUtil.getIntLE(read_array, 8);
+        if (opened != null) {
+            opened.countDown();
+        }
+        SortedIndex sorted = null;
+        if (sorted_len > 0) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(sorted_len);
+            for (int remain = sorted_len; remain > 0; ) {
+                int block = Math.min(remain, read_array.length);
+                if (do_read(in, read_array, block) == -1) {
+                    return false;
+                }
+                buf.put(read_array, 0, block);
+                remain -= block;
+            }
+            sorted = SortedIndex.wrap(buf);
+            if (sorted == null) {
+                throw new RuntimeException("bad sorted index, len: " + sorted_len);
+            }
+        }
+        int start = sorted == null ? 0 : sorted.records();
+        synchronized (index_lock) {
+            this.sorted = sorted;
+            this.tail_map = new LongIntMap(len / KEY_LEN);
+            this.index_size = start;
+            index_lock.notifyAll();
+        }
+        log("init sorted: " + (sorted == null ? 0 : sorted.count()) + ", start: " + start + ", len: " + len);
+        return read_index(in, read_array, start, len, 0);
+    }
+
+    // the index is complete, the gets before go to the server by key
+    private int index_get(long key) {
+        if (!shared) {
+            return index_lookup(key);
+        }
+        index_read.lock();
+        try {
+            return index_lookup(key);
+        } finally {
+            index_read.unlock();
+        }
+    }
+
+    // the index is loading or its load failed, the server looks the keys up
+    private boolean index_remote() {
+        return index_loading || index_failed;
+    }
+
+    private void wait_index() {
+        if (index_loading) {
+            synchronized (index_lock) {
+                for (; index_loading; ) {
+                    obj_wait(index_lock);
+                }
+            }
+        }
+    }
+
+    private int index_lookup(long key) {
+        if (tail_map == null) {
+            return index_map == null ? -1 : index_map.get(key);
+        }
+        int key_index = tail_map.get(key);
+        if (key_index == -1 && sorted != null) {
+            return sorted.get(key);
+        }
+        return key_index;
+    }
+
+    private void index_put(long key, int key_index) {
+        if (tail_map != null) {
+            tail_map.put(key, key_index);
+        } else {
+            index_map.put(key, key_index);
+        }
+    }
+
+    // the map is kept in the client dir and reused by the next init when it was closed cleanly
+    private DirectLongIntMap open_index_map(String dir) {
+        if (dir != null && !dir.isEmpty()) {
+            try {
+                return DirectLongIntMap.map(new File(dir, index + "_index_map"), DATA_COUNT);
+            } catch (Exception e) {
+                printException(e);
+                log("map local index failed, use direct memory, inst_id: " + index);
+            }
+        }
+        return DirectLongIntMap.allocate(DATA_COUNT);
+    }
+
+    // put the server index from record start on, len bytes of keys, the waiting gets are woken per chunk
+    private boolean read_index(InputStream in, byte[] read_array, int start, int len, long last_key) {
+        int index_size = start;
+        for (; len > 0; ) {
+            int block = Math.min(len, DATA_256K);
+            if (do_read(in, read_array, block) == -1) {
                 return false;
             }
-            int i_size = remain / 8;
-            for (int j = 0; j < i_size; j++) {
-                index_map.put(ByteUtil.getLongLE(read_array, j << 3), index_size++);
+            int i_size = block / 8;
+            synchronized (index_lock) {
+                for (int j = 0; j < i_size; j++) {
+                    last_key = ByteUtil.getLongLE(read_array, j << 3);
+                    index_put(last_key, index_size++);
+                }
+                this.index_size = index_size;
+                this.last_key = last_key;
+                index_lock.notifyAll();
             }
+            len -= block;
         }
-        this.index_size = index_size;
-        log("received server res: init finish: " + index_map.size() + ", inst_id: " + index);
         return true;
     }
 
     private void try_connect() {
         try {
-            this.socket = new Socket();
-            this.socket.setSoTimeout((int) TIMEOUT);
-//            this.socket.setTcpNoDelay(true);
-            this.socket.connect(server_address);
-            this.socketInput = socket.getInputStream();
-            this.socketOutput = socket.getOutputStream();
+            this.set_pending = 0;
+            this.batch_size = 0;
+            this.ahead_size = 0;
+            if (this.conn != null) {
+                com.firenio.common.Util.close(this.conn);
+            }
+            this.conn = ClientConnection.open(server_address);
+            this.socketInput = conn.input();
+            this.socketOutput = conn.output();
         } catch (Exception e) {
             printException(e);
             throw new RuntimeException(e);
@@ -149,13 +446,16 @@ public class KVService implements KVStoreRace {
 
     private void write_action(int action) {
         byte[] send_buf = this.send_buf;
-        send_buf[0] = get_header(index, action);
-        do_write(send_buf, 0, 1);
+        put_frame_header(send_buf, index, action, 0);
+        do_write(send_buf, 0, FRAME_HEADER);
     }
 
     private int do_read(byte[] data, int len) {
-        InputStream input = this.socketInput;
-        int         read  = 0;
+        return do_read(socketInput, data, len);
+    }
+
+    static int do_read(InputStream input, byte[] data, int len) {
+        int read = 0;
         try {
             for (; read < len; ) {
                 int r = input.read(data, read, len - read);
@@ -172,13 +472,59 @@ public class KVService implements KVStoreRace {
     }
 
     private void do_write(byte[] data, int off, int len) {
+        do_write(socketOutput, data, off, len);
+    }
+
+    /**
+     * a compressed block response of len bytes, decompressed into dst from
+     * position 0
+     *
+     * @return the length of the block, -1 if the connection failed or the
+     * block is corrupt, the connection is dropped then
+     */
+    static int read_compressed(ClientConnection conn, ByteBuffer dst, int len) {
+        byte[] packed = conn.packed_buf();
+        if (len < 4 || len > packed.length || do_read(conn.input(), packed, len) == -1) {
+            return -1;
+        }
+        int block_len = ByteUtil.getIntLE(packed, 0);
+        if (block_len < 0 || block_len > dst.capacity() || Lz4.decompress(packed, 4, len - 4, dst, block_len) != block_len) {
+            log("bad compressed block, len: " + len + ", block len: " + block_len);
+            return -1;
+        }
+        return block_len;
+    }
+
+    static void do_write(OutputStream output, byte[] data, int off, int len) {
         try {
-            socketOutput.write(data, off, len);
+            output.write(data, off, len);
         } catch (IOException e) {
             printException(e);
         }
     }
 
+    // acks of pipelined set batches, one byte each, block until at most max_pending are in flight
+    private void read_set_ack(int max_pending) {
+        byte[]      read_buf = this.read_buf;
+        InputStream input    = this.socketInput;
+        try {
+            for (; set_pending > max_pending; ) {
+                int r = input.read(read_buf, 0, set_pending);
+                if (r == -1) {
+                    throw new RuntimeException("connection closed, set pending: " + set_pending);
+                }
+                set_pending -= r;
+                for (; r > 0; r--) {
+                    acked_size = batch_ends[ack_next];
+                    ack_next = (ack_next + 1) % SET_WINDOW;
+                }
+            }
+        } catch (IOException e) {
+            printException(e);
+            throw new RuntimeException(e);
+        }
+    }
+
     private void read1byte() {
         byte[] read_buf = this.read_buf;
         try {
@@ -191,125 +537,647 @@ public class KVService implements KVStoreRace {
 
     @Override
     public long set(final String key, final byte[] val) throws KVSException {
+        wait_index();
+        if (index_failed) {
+            // the slot of the record is the index size, it is not known
+            throw new RuntimeException("index load failed, inst_id: " + index);
+        }
+        if (shared) {
+            synchronized (set_lock) {
+                return do_set(key, val);
+            }
+        }
+        return do_set(key, val);
+    }
+
+    private long do_set(String key, byte[] val) {
         long set_count = set_log_count.getAndIncrement();
         if (index == 0 && set_count < 10) {
             log("set key: " + key);
         }
         long long_key = string2long(key);
-        this.index_map.put(long_key, index_size++);
-        byte[] send_buf = this.send_buf;
-        send_buf[0] = get_header(index, ACTION_SET);
-        ByteUtil.putLongLE(send_buf, long_key, 4);
-        System.arraycopy(val, 0, send_buf, 12, VALUE_LEN);
-        do_write(send_buf, 0, VALUE_LEN + 12);
-        read1byte();
+        if (CLIENT_THIN) {
+            index_size++;
+        } else if (!shared) {
+            index_put(long_key, index_size++);
+        } else {
+            index_write.lock();
+            try {
+                index_put(long_key, index_size++);
+            } finally {
+                index_write.unlock();
+            }
+        }
+        this.last_key = long_key;
+        byte[] batch_buf = this.batch_buf;
+        int    off       = FRAME_HEADER + 4 + batch_size * (KEY_LEN + VALUE_LEN);
+        ByteUtil.putLongLE(batch_buf, long_key, off);
+        System.arraycopy(val, 0, batch_buf, off + KEY_LEN, VALUE_LEN);
+        if (++batch_size == SET_BATCH) {
+            send_set_batch();
+        }
         return -1;
     }
 
-    public LRUItem free_last() {
-        LRUItem item = REAL_CACHE[0];
-        for (int i = 1; i < LRU_SIZE; i++) {
-            LRUItem temp = REAL_CACHE[i];
-            if (temp.last_access < item.last_access) {
-                item = temp;
-            }
+    private void send_set_batch() {
+        sync_ahead();
+        int batch_size = this.batch_size;
+        if (batch_size == 0) {
+            return;
         }
-        if (item.index != -1) {
-            ALL_CACHE[item.index] = null;
-            item.index = -1;
+        byte[] batch_buf = this.batch_buf;
+        int    body_len  = 4 + batch_size * (KEY_LEN + VALUE_LEN);
+        put_frame_header(batch_buf, index, ACTION_SET_BATCH, body_len);
+        put_int_le(batch_buf, batch_size, FRAME_HEADER);
+        do_write(batch_buf, 0, FRAME_HEADER + body_len);
+        this.batch_size = 0;
+        batch_ends[(ack_next + set_pending) % SET_WINDOW] = index_size;
+        if (++set_pending >= SET_WINDOW) {
+            read_set_ack(SET_WINDOW - 1);
+        }
+    }
+
+    // send the buffered set records and wait until the server acked all of them
+    private void sync_set() {
+        send_set_batch();
+        read_set_ack(0);
+        this.acked_size = index_size;
+    }
+
+    // a get must not overtake the sets of its record, they go over another connection
+    private void wait_acked(int records) {
+        if (acked_size < records) {
+            synchronized (set_lock) {
+                if (acked_size < records) {
+                    sync_set();
+                }
+            }
         }
-        return item;
     }
 
     @Override
     public long get(final String key, final Ref<byte[]> val) throws KVSException {
         long log_count = get_log_count.getAndIncrement();
-        long long_key  = string2long(key);
-        int  key_index = index_map.get(long_key);
+        if (shared) {
+            return get_shared(key, val);
+        }
+        long long_key = string2long(key);
+        if (CLIENT_THIN || index_remote()) {
+            return get_remote(key, long_key, val);
+        }
+        int key_index = index_get(long_key);
         if (index == 0 && log_count < 10) {
             log("get key: " + key + ", index: " + key_index);
         }
         if (!ONLINE && log_count == 1000) {
             com.firenio.common.Util.exec(() -> {
                 com.firenio.common.Util.sleep(1000);
-                com.firenio.common.Util.close(socket);
+                com.firenio.common.Util.close(conn);
             });
         }
         if (key_index == -1) {
             val.setValue(null);
             return 0;
         }
+        long    val_pos = 1L * key_index * VALUE_LEN;
+        LRUItem item    = load_block(key, key_index, val, log_count);
+        if (item != null) {
+            byte[] res = READ_VAL_BUF.get();
+            item.read(val_pos, res);
+            val.setValue(res);
+        }
+        return 0;
+    }
+
+    /**
+     * the value of the key as a read only buffer, null if the key is not
+     * found. When the value is in a cached block the buffer is a view of the
+     * block, no copy is made, and it is valid until the next call on this
+     * service. A shared or thin service returns a view of a copy, as another
+     * thread may evict the block at any time.
+     */
+    public ByteBuffer get_buffer(final String key) throws KVSException {
+        if (!shared && !CLIENT_THIN && !index_remote()) {
+            long log_count = get_log_count.getAndIncrement();
+            int  key_index = index_get(string2long(key));
+            if (key_index == -1) {
+                return null;
+            }
+            Ref<byte[]> val  = Ref.of(byte[].class);
+            LRUItem     item = load_block(key, key_index, val, log_count);
+            if (item != null) {
+                return item.slice(1L * key_index * VALUE_LEN);
+            }
+            return val.getValue() == null ? null : ByteBuffer.wrap(val.getValue()).asReadOnlyBuffer();
+        }
+        Ref<byte[]> val = Ref.of(byte[].class);
+        get(key, val);
+        return val.getValue() == null ? null : ByteBuffer.wrap(val.getValue()).asReadOnlyBuffer();
+    }
+
+    /**
+     * the cached block of the record, read from the server on a miss, or null
+     * when the value was read alone into val
+     */
+    private LRUItem load_block(String key, int key_index, Ref<byte[]> val, long log_count) {
         int     cache_index = key_index / DATA_COUNT_PER_BLOCK;
         long    val_pos     = 1L * key_index * VALUE_LEN;
-        LRUItem item        = ALL_CACHE[cache_index];
+        LRUItem item        = cache.get(cache_index);
         if (item == null) {
-            long read_pos = 1L * cache_index * READ_BLOCK_SIZE;
-            if (log_count < 10 && index == 0) {
-                log("cache miss, read data from server..., read_pos: " + read_pos);
-            }
-            item = free_last();
-            byte[] read_buf = item.buf;
-            byte[] send_buf = this.send_buf;
-            send_buf[0] = get_header(index, ACTION_READ);
-            ByteUtil.putLongLE(send_buf, read_pos, 4);
-            do_write(send_buf, 0, 12);
-            int read = do_read(read_buf, 8);
-            if (read != -1) {
-                int data_len = ByteUtil.getIntLE(read_buf, 4);
-                read = do_read(read_buf, data_len);
+            if (ahead_size > 0) {
+                sync_ahead();
+                item = cache.get(cache_index);
             }
-            if (read == -1) {
-                try_connect();
-                log("reconnect success, try get key: " + key);
-                return get(key, val);
+            if (item == null && READ_ADAPTIVE && !local_miss(cache_index)) {
+                get_value(key, val_pos, val);
+                return null;
+            }
+            if (item == null) {
+                long read_pos = 1L * cache_index * READ_BLOCK_SIZE;
+                if (log_count < 10 && index == 0) {
+                    log("cache miss, read data from server..., read_pos: " + read_pos);
+                }
+                sync_set();
+                item = cache.evict();
+                send_read(read_pos);
+                if (read_block(item) == -1) {
+                    cache.release(item);
+                    try_connect();
+                    log("reconnect success, try get key: " + key);
+                    return load_block(key, key_index, val, log_count);
+                }
+                cache.put(item, cache_index);
+            }
+            if (READ_AHEAD > 0) {
+                read_ahead(cache_index);
+            } else {
+                last_miss_block = cache_index;
             }
-            item.set_index(cache_index);
-            ALL_CACHE[cache_index] = item;
         }
         if (index == 0 && log_count < 10) {
             log("read data from cache..., val_pos: " + val_pos);
         }
+        return item;
+    }
+
+    // a read response into the block of the item, -1 if the connection failed
+    private int read_block(LRUItem item) {
+        byte[] read_buf = this.read_buf;
+        if (do_read(read_buf, 8) == -1) {
+            return -1;
+        }
+        int len = ByteUtil.getIntLE(read_buf, 4);
+        if (read_buf[1] == RES_COMPRESSED) {
+            return read_compressed(conn, item.buf, len);
+        }
+        return conn.read(item.buf, len);
+    }
+
+    // a miss on or next to the block of the last miss looks like a scan or a hot range,
+    // only those are worth a whole block, the others read the single value
+    private boolean local_miss(int block) {
+        int last = last_miss_block;
+        return last != -1 && block >= last - 1 && block <= last + 1;
+    }
+
+    // the value goes around the block cache, a random get must not evict the blocks of a scan
+    private long get_value(String key, long val_pos, Ref<byte[]> val) {
+        last_miss_block = (int) (val_pos / READ_BLOCK_SIZE);
+        value_count++;
+        sync_set();
+        send_read_range(val_pos, VALUE_LEN);
         byte[] res = READ_VAL_BUF.get();
-        item.read(val_pos, res);
-        val.setValue(res);
+        int    len = read_value(res);
+        if (len == -1) {
+            try_connect();
+            log("reconnect success, try get key: " + key);
+            return get(key, val);
+        }
+        val.setValue(len == 0 ? null : res);
         return 0;
     }
 
-    @Override
-    public void close() {
-        if (init) {
-            init = false;
-            log("close ..." + index);
-            write_action(ACTION_CLOSE);
-            read1byte();
-            log("close finish..." + index);
-            com.firenio.common.Util.close(this.socket);
+    private long get_shared(String key, Ref<byte[]> val) {
+        byte[]         res  = READ_VAL_BUF.get();
+        ReadConnection conn = borrow();
+        try {
+            val.setValue(read_shared(conn, key, res) > 0 ? res : null);
+        } finally {
+            read_pool.offer(conn);
+        }
+        return 0;
+    }
+
+    private long get_all_shared(String[] keys, byte[][] vals) {
+        long           found = 0;
+        ReadConnection conn  = borrow();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                byte[] res = vals[i];
+                if (res == null || res.length != VALUE_LEN) {
+                    res = new byte[VALUE_LEN];
+                }
+                if (read_shared(conn, keys[i], res) > 0) {
+                    vals[i] = res;
+                    found++;
+                } else {
+                    vals[i] = null;
+                }
+            }
+        } finally {
+            read_pool.offer(conn);
+        }
+        return found;
+    }
+
+    // a connection taken after close is closed, it goes back for the other threads waiting
+    private ReadConnection borrow() {
+        ReadConnection conn;
+        try {
+            conn = read_pool.take();
+        } catch (InterruptedException e) {
+            printException(e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (read_pool_closed) {
+            read_pool.offer(conn);
+            throw new RuntimeException("service closed, inst_id: " + index);
+        }
+        return conn;
+    }
+
+    /**
+     * read the value of the key into res with a connection of the pool, the
+     * stripe of the block is locked around each access, a block is read into
+     * an evicted item that no other thread can see until it is put back. No
+     * read ahead, a pooled connection has one request in flight.
+     *
+     * @return the length of the value, 0 if the key is not found
+     */
+    private int read_shared(ReadConnection conn, String key, byte[] res) {
+        long long_key = string2long(key);
+        if (CLIENT_THIN) {
+            wait_acked(index_size);
+            return read_retry(conn, key, true, long_key, 0, res);
+        }
+        if (index_remote()) {
+            // the sets wait for the index, none is in flight
+            return read_retry(conn, key, true, long_key, 0, res);
+        }
+        int key_index = index_get(long_key);
+        if (key_index == -1) {
+            return 0;
+        }
+        wait_acked(key_index + 1);
+        int        block   = key_index / DATA_COUNT_PER_BLOCK;
+        long       val_pos = 1L * key_index * VALUE_LEN;
+        BlockCache stripe  = caches[block % caches.length];
+        synchronized (stripe) {
+            LRUItem item = stripe.get(block);
+            if (item != null) {
+                item.read(val_pos, res);
+                return VALUE_LEN;
+            }
+        }
+        if (READ_ADAPTIVE && !conn.local_miss(block)) {
+            conn.value_count++;
+            return read_retry(conn, key, false, 0, val_pos, res);
+        }
+        long    read_pos = 1L * block * READ_BLOCK_SIZE;
+        LRUItem item;
+        synchronized (stripe) {
+            item = stripe.evict();
+        }
+        int len = conn.read(read_pos, READ_BLOCK_SIZE, item.buf);
+        if (len != -1) {
+            LRUItem.copy(item.buf, (int) (val_pos - read_pos), res);
+        }
+        synchronized (stripe) {
+            // another thread may have cached the block meanwhile
+            if (len == -1 || stripe.contains(block)) {
+                stripe.release(item);
+            } else {
+                stripe.put(item, block);
+            }
+        }
+        if (len == -1) {
+            conn.connect();
+            log("reconnect success, try get key: " + key);
+            return read_shared(conn, key, res);
+        }
+        return VALUE_LEN;
+    }
+
+    // a get of long_key when by_key, or else the value at val_pos
+    private int read_retry(ReadConnection conn, String key, boolean by_key, long long_key, long val_pos, byte[] res) {
+        for (; ; ) {
+            int len = by_key ? conn.get(long_key, res) : conn.read(val_pos, VALUE_LEN, res);
+            if (len != -1) {
+                return len;
+            }
+            conn.connect();
+            log("reconnect success, try get key: " + key);
+        }
+    }
+
+    private long get_remote(String key, long long_key, Ref<byte[]> val) {
+        sync_set();
+        send_get(long_key);
+        byte[] res = READ_VAL_BUF.get();
+        int    len = read_value(res);
+        if (len == -1) {
+            try_connect();
+            log("reconnect success, try get key: " + key);
+            return get_remote(key, long_key, val);
+        }
+        val.setValue(len == 0 ? null : res);
+        return 0;
+    }
+
+    // the gets are pipelined, at most READ_BUF_POOL in flight as the server reuses its read buffers after that
+    private long get_all_remote(String[] keys, byte[][] vals) {
+        sync_set();
+        int  count = keys.length;
+        int  sent  = 0;
+        long found = 0;
+        for (int i = 0; i < count; i++) {
+            for (; sent < count && sent - i < READ_BUF_POOL; sent++) {
+                send_get(string2long(keys[sent]));
+            }
+            byte[] res = vals[i];
+            if (res == null || res.length != VALUE_LEN) {
+                res = new byte[VALUE_LEN];
+            }
+            int len = read_value(res);
+            if (len == -1) {
+                try_connect();
+                log("reconnect success, try get keys: " + count);
+                return get_all_remote(keys, vals);
+            }
+            if (len == 0) {
+                vals[i] = null;
+            } else {
+                vals[i] = res;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private void send_get(long key) {
+        byte[] send_buf = this.send_buf;
+        put_frame_header(send_buf, index, ACTION_GET, 8);
+        ByteUtil.putLongLE(send_buf, key, FRAME_HEADER);
+        do_write(send_buf, 0, FRAME_HEADER + 8);
+    }
+
+    // the value of a get response, 0 if the key is not found, -1 if the connection failed
+    private int read_value(byte[] res) {
+        byte[] read_buf = this.read_buf;
+        if (do_read(read_buf, 8) == -1) {
+            return -1;
+        }
+        int len = ByteUtil.getIntLE(read_buf, 4);
+        if (len > 0 && do_read(res, len) == -1) {
+            return -1;
+        }
+        return len;
+    }
+
+    private void send_read(long read_pos) {
+        byte[] send_buf = this.send_buf;
+        put_frame_header(send_buf, index, ACTION_READ, COMPRESS_WIRE ? FRAME_FLAG_COMPRESS : 0, 8);
+        ByteUtil.putLongLE(send_buf, read_pos, FRAME_HEADER);
+        do_write(send_buf, 0, FRAME_HEADER + 8);
+    }
+
+    private void send_read_range(long read_pos, int len) {
+        byte[] send_buf = this.send_buf;
+        put_frame_header(send_buf, index, ACTION_READ_RANGE, 12);
+        put_int_le(send_buf, len, FRAME_HEADER);
+        ByteUtil.putLongLE(send_buf, read_pos, FRAME_HEADER + 4);
+        do_write(send_buf, 0, FRAME_HEADER + 12);
+    }
+
+    // two misses on adjacent blocks start a scan, request the next blocks in its direction
+    // and leave the responses in the socket until the scan reaches them
+    private void read_ahead(int block) {
+        int last = this.last_miss_block;
+        int dir;
+        this.last_miss_block = block;
+        if (block == last + 1) {
+            dir = 1;
+        } else if (block == last - 1) {
+            dir = -1;
+        } else {
+            return;
+        }
+        int block_count = Math.min(cache.block_count(), (index_size + DATA_COUNT_PER_BLOCK - 1) / DATA_COUNT_PER_BLOCK);
+        for (int i = 1; i <= READ_AHEAD; i++) {
+            int next = block + dir * i;
+            if (next < 0 || next >= block_count) {
+                break;
+            }
+            if (cache.contains(next)) {
+                continue;
+            }
+            AHEAD_ITEMS[ahead_size] = cache.evict();
+            AHEAD_BLOCKS[ahead_size++] = next;
+            ahead_count++;
+            send_read(1L * next * READ_BLOCK_SIZE);
+        }
+    }
+
+    // the read ahead responses arrive in request order, they must be consumed before any other request
+    private void sync_ahead() {
+        int ahead_size = this.ahead_size;
+        if (ahead_size == 0) {
+            return;
+        }
+        this.ahead_size = 0;
+        int read = 0;
+        for (int i = 0; i < ahead_size; i++) {
+            LRUItem item = AHEAD_ITEMS[i];
+            if (read != -1) {
+                read = read_block(item);
+            }
+            if (read == -1) {
+                cache.release(item);
+            } else {
+                cache.put(item, AHEAD_BLOCKS[i]);
+            }
+            AHEAD_ITEMS[i] = null;
+        }
+        if (read == -1) {
+            try_connect();
+            log("reconnect success after read ahead");
         }
     }
 
     @Override
-    public void flush() {
-        log("flush ..." + index);
-        write_action(ACTION_FLUSH);
-        read1byte();
-        log("flush finish..." + index);
+    public long getAll(final String[] keys, final byte[][] vals) throws KVSException {
+        if (shared) {
+            return get_all_shared(keys, vals);
+        }
+        if (CLIENT_THIN || index_remote()) {
+            return get_all_remote(keys, vals);
+        }
+        int   count     = keys.length;
+        int[] key_index = new int[count];
+        int   remain    = 0;
+        long  found     = 0;
+        for (int i = 0; i < count; i++) {
+            int k_index = index_get(string2long(keys[i]));
+            key_index[i] = k_index;
+            if (k_index == -1) {
+                vals[i] = null;
+            } else {
+                remain++;
+            }
+        }
+        int[] blocks = this.READ_BLOCKS;
+        for (; ; ) {
+            int batch = 0;
+            for (int i = 0; i < count; i++) {
+                int k_index = key_index[i];
+                if (k_index == -1) {
+                    continue;
+                }
+                int     cache_index = k_index / DATA_COUNT_PER_BLOCK;
+                LRUItem item        = cache.get(cache_index);
+                if (item != null) {
+                    byte[] res = vals[i];
+                    if (res == null || res.length != VALUE_LEN) {
+                        res = new byte[VALUE_LEN];
+                        vals[i] = res;
+                    }
+                    item.read(1L * k_index * VALUE_LEN, res);
+                    key_index[i] = -1;
+                    remain--;
+                    found++;
+                } else if (batch < READ_BATCH_MAX && !contains(blocks, batch, cache_index)) {
+                    blocks[batch++] = cache_index;
+                }
+            }
+            if (remain == 0) {
+                return found;
+            }
+            if (!read_blocks(blocks, batch)) {
+                try_connect();
+                log("reconnect success, try get keys: " + count);
+            }
+        }
     }
 
-    static final class LRUItem {
+    private static boolean contains(int[] array, int len, int v) {
+        for (int i = 0; i < len; i++) {
+            if (array[i] == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // fetch several blocks with one request, the blocks are cached when this returns true
+    private boolean read_blocks(int[] blocks, int count) {
+        sync_set();
+        LRUItem[] items    = this.READ_ITEMS;
+        byte[]    send_buf = this.send_buf;
+        int       body_len = 4 + (count << 3);
+        put_frame_header(send_buf, index, ACTION_READ_BATCH, body_len);
+        put_int_le(send_buf, count, FRAME_HEADER);
+        for (int i = 0; i < count; i++) {
+            items[i] = cache.evict();
+            ByteUtil.putLongLE(send_buf, 1L * blocks[i] * READ_BLOCK_SIZE, FRAME_HEADER + 4 + (i << 3));
+        }
+        do_write(send_buf, 0, FRAME_HEADER + body_len);
+        byte[] read_buf = this.read_buf;
+        int    read     = do_read(read_buf, 4 + (count << 2));
+        for (int i = 0; i < count && read != -1; i++) {
+            int data_len = ByteUtil.getIntLE(read_buf, 4 + (i << 2));
+            read = conn.read(items[i].buf, data_len);
+        }
+        for (int i = 0; i < count; i++) {
+            if (read == -1) {
+                cache.release(items[i]);
+            } else {
+                cache.put(items[i], blocks[i]);
+            }
+            items[i] = null;
+        }
+        return read != -1;
+    }
 
-        final byte[] buf = new byte[READ_BLOCK_SIZE];
-        long last_access = 0;
-        int  index       = -1;
-        long start_pos;
+    @Override
+    public void close() {
+        synchronized (close_lock) {
+            // a get in flight may wait for the set acks under set_lock, so its
+            // connection is taken back before that lock is held
+            close_read_pool();
+            synchronized (set_lock) {
+                if (init) {
+                    init = false;
+                    wait_index();
+                    log("close ..." + index);
+                    sync_set();
+                    write_action(ACTION_CLOSE);
+                    read1byte();
+                    log("close finish..." + index + ", " + BlockCache.stat(caches) + ", read ahead: " + ahead_count + ", value reads: " + value_count);
+                    com.firenio.common.Util.close(this.conn);
+                    this.conn = null;
+                    DirectLongIntMap index_map = this.index_map;
+                    if (index_map != null) {
+                        index_map.set_meta(META_RECORDS, index_size);
+                        index_map.set_meta(META_FENCE, last_key);
+                        index_map.force();
+                        index_map.set_meta(META_CLEAN, 1);
+                        index_map.close();
+                        this.index_map = null;
+                    }
+                    this.sorted = null;
+                    this.tail_map = null;
+                }
+            }
+        }
+    }
 
-        void set_index(int index) {
-            this.index = index;
-            this.start_pos = 1L * index * READ_BLOCK_SIZE;
+    // every connection is taken back before it is closed, the gets in flight finish on theirs
+    private void close_read_pool() {
+        ReadConnection[] conns = this.read_conns;
+        if (conns == null || read_pool_closed) {
+            return;
         }
+        read_pool_closed = true;
+        ReadConnection[] taken       = new ReadConnection[conns.length];
+        boolean          interrupted = false;
+        for (int i = 0; i < taken.length; ) {
+            try {
+                taken[i] = read_pool.take();
+                i++;
+            } catch (InterruptedException e) {
+                // the connections must all come back before they are closed
+                interrupted = true;
+            }
+        }
+        for (ReadConnection conn : taken) {
+            value_count += conn.value_count;
+            conn.close();
+            read_pool.offer(conn);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        public void read(long pos, byte[] res) {
-            this.last_access = System.currentTimeMillis();
-            System.arraycopy(buf, (int) (pos - start_pos), res, 0, VALUE_LEN);
+    @Override
+    public void flush() {
+        synchronized (set_lock) {
+            log("flush ..." + index);
+            sync_set();
+            write_action(ACTION_FLUSH);
+            read1byte();
+            log("flush finish..." + index);
         }
     }
 
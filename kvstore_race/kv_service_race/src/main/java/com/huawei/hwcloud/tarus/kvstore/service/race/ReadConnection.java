@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import com.firenio.common.ByteUtil;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.ActionType.*;
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
+
+/**
+ * A connection of the read pool of a {@link KVService} shared by several
+ * threads. It is used by one thread at a time with one request outstanding,
+ * so a response is matched to its request by the order alone.
+ *
+ * @author: wangkai
+ **/
+final class ReadConnection {
+
+    final InetSocketAddress address;
+    final int               index;
+    final byte[]            send_buf = new byte[FRAME_HEADER + 12];
+    final byte[]            head_buf = new byte[8];
+
+    ClientConnection conn;
+    InputStream      input;
+    OutputStream     output;
+    int              last_miss_block = -1;
+    int              value_count;
+
+    ReadConnection(InetSocketAddress address, int index) {
+        this.address = address;
+        this.index = index;
+    }
+
+    void connect() {
+        close();
+        ClientConnection conn = ClientConnection.open(address);
+        this.input = conn.input();
+        this.output = conn.output();
+        this.conn = conn;
+    }
+
+    // the locality of the misses is tracked per connection, like the single connection client does
+    boolean local_miss(int block) {
+        int last = last_miss_block;
+        this.last_miss_block = block;
+        return last != -1 && block >= last - 1 && block <= last + 1;
+    }
+
+    int read(long pos, int len, byte[] dst) {
+        byte[] send_buf = this.send_buf;
+        put_frame_header(send_buf, index, ACTION_READ_RANGE, 12);
+        put_int_le(send_buf, len, FRAME_HEADER);
+        ByteUtil.putLongLE(send_buf, pos, FRAME_HEADER + 4);
+        return request(FRAME_HEADER + 12, dst);
+    }
+
+    // a response of the whole len is read into dst from position 0, it may come compressed with kvs.compress.wire
+    int read(long pos, int len, ByteBuffer dst) {
+        byte[] send_buf = this.send_buf;
+        put_frame_header(send_buf, index, ACTION_READ_RANGE, COMPRESS_WIRE ? FRAME_FLAG_COMPRESS : 0, 12);
+        put_int_le(send_buf, len, FRAME_HEADER);
+        ByteUtil.putLongLE(send_buf, pos, FRAME_HEADER + 4);
+        KVService.do_write(output, send_buf, 0, FRAME_HEADER + 12);
+        if (KVService.do_read(input, head_buf, 8) == -1) {
+            return -1;
+        }
+        int data_len = ByteUtil.getIntLE(head_buf, 4);
+        if (head_buf[1] == RES_COMPRESSED) {
+            return KVService.read_compressed(conn, dst, data_len);
+        }
+        return conn.read(dst, data_len) == -1 ? -1 : data_len;
+    }
+
+    int get(long key, byte[] dst) {
+        byte[] send_buf = this.send_buf;
+        put_frame_header(send_buf, index, ACTION_GET, 8);
+        ByteUtil.putLongLE(send_buf, key, FRAME_HEADER);
+        return request(FRAME_HEADER + 8, dst);
+    }
+
+    // the data length of the response, -1 if the connection failed
+    private int request(int req_len, byte[] dst) {
+        KVService.do_write(output, send_buf, 0, req_len);
+        if (KVService.do_read(input, head_buf, 8) == -1) {
+            return -1;
+        }
+        int len = ByteUtil.getIntLE(head_buf, 4);
+        if (len > 0 && KVService.do_read(input, dst, len) == -1) {
+            return -1;
+        }
+        return len;
+    }
+
+    void close() {
+        if (conn != null) {
+            com.firenio.common.Util.close(conn);
+            conn = null;
+        }
+    }
+
+}
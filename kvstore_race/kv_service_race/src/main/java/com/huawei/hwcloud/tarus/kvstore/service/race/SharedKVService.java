@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.nio.ByteBuffer;
+
+import com.huawei.hwcloud.tarus.kvstore.common.KVStoreRace;
+import com.huawei.hwcloud.tarus.kvstore.common.Ref;
+import com.huawei.hwcloud.tarus.kvstore.exception.KVSException;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
+
+/**
+ * A racer for many threads, the racers of one partition share one
+ * {@link KVService} in shared mode, with its index, block cache and read
+ * connections. The partition of a racer is thread_num % kvs.instance, its
+ * service is opened by the first init and closed by the last close.
+ *
+ * @author: wangkai
+ **/
+public class SharedKVService implements KVStoreRace {
+
+    static final KVService[] SERVICES = new KVService[KV_INSTANCE];
+    static final int[]       REFS     = new int[KV_INSTANCE];
+    static final Object[]    LOCKS    = new Object[KV_INSTANCE];
+
+    static {
+        for (int i = 0; i < KV_INSTANCE; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    KVService service;
+    int       partition;
+
+    @Override
+    public boolean init(final String dir, final int thread_num) throws KVSException {
+        if (service != null) {
+            log("already init");
+            return true;
+        }
+        int partition = thread_num % KV_INSTANCE;
+        synchronized (LOCKS[partition]) {
+            KVService service = SERVICES[partition];
+            if (service == null) {
+                service = new KVService(true);
+                if (!service.init(dir, partition)) {
+                    return false;
+                }
+                SERVICES[partition] = service;
+            }
+            REFS[partition]++;
+            this.service = service;
+            this.partition = partition;
+        }
+        return true;
+    }
+
+    @Override
+    public long set(final String key, final byte[] value) throws KVSException {
+        return service.set(key, value);
+    }
+
+    @Override
+    public long get(final String key, final Ref<byte[]> val) throws KVSException {
+        return service.get(key, val);
+    }
+
+    public ByteBuffer get_buffer(final String key) throws KVSException {
+        return service.get_buffer(key);
+    }
+
+    @Override
+    public long getAll(final String[] keys, final byte[][] vals) throws KVSException {
+        return service.getAll(keys, vals);
+    }
+
+    @Override
+    public void close() {
+        KVService service = this.service;
+        if (service == null) {
+            return;
+        }
+        this.service = null;
+        synchronized (LOCKS[partition]) {
+            if (--REFS[partition] == 0) {
+                SERVICES[partition] = null;
+                service.close();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        service.flush();
+    }
+
+}
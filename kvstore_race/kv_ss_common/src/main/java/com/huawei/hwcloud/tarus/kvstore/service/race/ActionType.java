@@ -16,15 +16,37 @@
 package com.huawei.hwcloud.tarus.kvstore.service.race;
 
 /**
+ * A request starts with a frame header of FRAME_HEADER bytes:
+ * <pre>
+ * [magic:1][version:1][action:1][flags:1][partition:int le][body length:int le]
+ * </pre>
+ * the body of the action follows it. A response starts with the action byte.
+ * <p>
+ * A block read with FRAME_FLAG_COMPRESS may be answered with RES_COMPRESSED
+ * in the second byte of the response, its data is the length of the block as
+ * an int le and the block in the lz4 block format ({@link Lz4}).
+ *
  * @author: wangkai
  **/
 public final class ActionType {
 
-    public static final int ACTION_INIT     = 1;
-    public static final int ACTION_SET      = 2;
-//    public static final int ACTION_GET      = 3;
-    public static final int ACTION_FLUSH    = 4;
-    public static final int ACTION_CLOSE    = 5;
-    public static final int ACTION_READ     = 6;
+    public static final int FRAME_MAGIC   = 0x4b;
+    public static final int FRAME_VERSION = 1;
+    public static final int FRAME_HEADER  = 12;
+
+    public static final int FRAME_FLAG_COMPRESS = 1;
+    public static final int RES_COMPRESSED      = 1;
+
+    public static final int ACTION_INIT       = 1;
+    public static final int ACTION_SET        = 2;
+    public static final int ACTION_GET        = 3;
+    public static final int ACTION_FLUSH      = 4;
+    public static final int ACTION_CLOSE      = 5;
+    public static final int ACTION_READ       = 6;
+    public static final int ACTION_SET_BATCH  = 7;
+    public static final int ACTION_READ_BATCH = 8;
+    public static final int ACTION_INIT_TAIL  = 9;
+    public static final int ACTION_INIT_SORT  = 10;
+    public static final int ACTION_READ_RANGE = 11;
 
 }
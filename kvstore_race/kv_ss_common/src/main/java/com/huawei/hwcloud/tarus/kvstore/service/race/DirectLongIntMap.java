@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
+
+/**
+ * Open addressing long to int map that lives outside of the java heap, in a
+ * direct buffer or in a file mapping, it probes like {@link LongIntMap}. A
+ * mapped map is reused by the next process that maps the same file with the
+ * same capacity.
+ * <p>
+ * layout, little endian: header(64) | keys long[cap] | values int[cap], the
+ * header holds magic, version, cap, size and {@link #META_COUNT} longs of the
+ * caller. The capacity is fixed, -1 is the empty key.
+ *
+ * @author: wangkai
+ **/
+public final class DirectLongIntMap implements Closeable {
+
+    public static final int META_COUNT = 4;
+
+    static final int MAGIC    = 0x4b564d50;
+    // 2: fibonacci hashed home slots
+    static final int VERSION  = 2;
+    static final int HEADER   = 64;
+    static final int SIZE_OFF = 12;
+    static final int META_OFF = 16;
+
+    private final ByteBuffer  buf;
+    private final FileChannel channel;
+    private final boolean     loaded;
+    private final int         cap;
+    private final int         mask;
+    private final int         shift;
+    private final int         limit;
+    private final int         values_off;
+    private       int         size;
+
+    private DirectLongIntMap(ByteBuffer buf, FileChannel channel, int cap) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        this.buf = buf;
+        this.channel = channel;
+        this.cap = cap;
+        this.mask = cap - 1;
+        this.shift = LongIntMap.shift(cap);
+        this.limit = (int) (cap * 0.75f);
+        this.values_off = HEADER + (cap << 3);
+        this.loaded = buf.getInt(0) == MAGIC && buf.getInt(4) == VERSION && buf.getInt(8) == cap;
+        if (loaded) {
+            this.size = buf.getInt(SIZE_OFF);
+        } else {
+            clear();
+        }
+    }
+
+    public static DirectLongIntMap allocate(int expect) {
+        int cap = capacity(expect);
+        return new DirectLongIntMap(ByteBuffer.allocateDirect(length(cap)), null, cap);
+    }
+
+    /**
+     * map the file, its content is kept if it was written by a map of the
+     * same capacity and format, see {@link #loaded()}
+     */
+    public static DirectLongIntMap map(File file, int expect) {
+        int         cap     = capacity(expect);
+        FileChannel channel = open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        return new DirectLongIntMap(Util.map(channel, 0, length(cap)), channel, cap);
+    }
+
+    private static int capacity(int expect) {
+        return clothCover((int) Math.min((long) (Math.max(16, expect) / 0.75f) + 1, 1 << 30));
+    }
+
+    private static int length(int cap) {
+        long len = HEADER + 12L * cap;
+        if (len > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("map too large: " + cap);
+        }
+        return (int) len;
+    }
+
+    private int index_of(long key) {
+        ByteBuffer buf  = this.buf;
+        int        mask = this.mask;
+        for (int i = LongIntMap.hash(key, shift); ; i = (i + 1) & mask) {
+            long k = buf.getLong(HEADER + (i << 3));
+            if (k == key || k == -1) {
+                return i;
+            }
+        }
+    }
+
+    public int get(long key) {
+        int index = index_of(key);
+        if (buf.getLong(HEADER + (index << 3)) == -1) {
+            return -1;
+        }
+        return buf.getInt(values_off + (index << 2));
+    }
+
+    public int put(long key, int value) {
+        ByteBuffer buf       = this.buf;
+        int        index     = index_of(key);
+        int        key_off   = HEADER + (index << 3);
+        int        value_off = values_off + (index << 2);
+        if (buf.getLong(key_off) == key) {
+            int old = buf.getInt(value_off);
+            buf.putInt(value_off, value);
+            return old;
+        }
+        if (size == limit) {
+            throw new IllegalStateException("map is full: " + size);
+        }
+        buf.putInt(value_off, value);
+        buf.putLong(key_off, key);
+        buf.putInt(SIZE_OFF, ++size);
+        return -1;
+    }
+
+    public void clear() {
+        ByteBuffer buf = this.buf;
+        for (int i = 0; i < cap; i++) {
+            buf.putLong(HEADER + (i << 3), -1);
+        }
+        for (int i = 0; i < META_COUNT; i++) {
+            buf.putLong(META_OFF + (i << 3), 0);
+        }
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, cap);
+        buf.putInt(SIZE_OFF, 0);
+        this.size = 0;
+    }
+
+    public long get_meta(int i) {
+        return buf.getLong(META_OFF + (i << 3));
+    }
+
+    public void set_meta(int i, long v) {
+        buf.putLong(META_OFF + (i << 3), v);
+    }
+
+    /**
+     * whether the content was reused from the mapped file
+     */
+    public boolean loaded() {
+        return loaded;
+    }
+
+    public boolean persistent() {
+        return channel != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void force() {
+        if (channel != null) {
+            ((MappedByteBuffer) buf).force();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            force();
+            release_mapped_buf((MappedByteBuffer) buf);
+            Util.close(channel);
+        }
+    }
+
+}
@@ -15,34 +15,164 @@
  */
 package com.huawei.hwcloud.tarus.kvstore.service.race;
 
+import java.util.Arrays;
+
+import com.huawei.hwcloud.tarus.kvstore.common.ConfigManager;
+import com.huawei.hwcloud.tarus.kvstore.common.Configuration;
+import com.huawei.hwcloud.tarus.kvstore.exception.KVSErrorCode;
+import com.huawei.hwcloud.tarus.kvstore.exception.KVSException;
+
+import static com.huawei.hwcloud.tarus.kvstore.common.Configuration.*;
+
 /**
+ * The tunables are read once from the system properties (see
+ * {@link Configuration}) when the class is loaded and kept in static finals,
+ * so that the jit still folds them. The client and the server must run with
+ * the same kvs.instance, kvs.read.block.size and kvs.data.count.
+ *
  * @author: wangkai
  **/
 public class Env {
 
-    public static final boolean ONLINE               = false;
+    public static final boolean ONLINE               = config_bool(KVS_CONFIG_KVS_ONLINE);
     public static final boolean DEBUG                = false;
-    public static final int     PORT                 = 9571;
-    public static final int     LRU_SIZE             = 14;
-    public static final int     KV_INSTANCE          = 16;
+    public static final int     PORT                 = config_int(KVS_CONFIG_KVS_PORT, 9571);
+    public static final int     SET_WINDOW           = 32;
+    public static final int     SET_BATCH            = 16;
+    public static final int     KV_INSTANCE          = config_int(KVS_CONFIG_KVS_INSTANCE, 16);
+    public static final int     KV_INSTANCE_MAX      = 4096;
+    public static final int     SERVER_LOOPS         = config_int(KVS_CONFIG_KVS_SERVER_LOOPS, Math.min(KV_INSTANCE, 16));
     public static final int     VALUE_LEN            = 1024 * 4;
-    public static final int     DATA_COUNT           = ONLINE ? 1024 * 4400 : 1024 * 66;
+    public static final int     DATA_COUNT           = config_int(KVS_CONFIG_KVS_DATA_COUNT, ONLINE ? 1024 * 4400 : 1024 * 66);
     public static final int     OFFLINE_DATA_COUNT   = 1024 * 64;
     public static final int     KEY_LEN              = 8;
     public static final int     DATA_1M              = 1024 * 1024;
     public static final int     DATA_256K            = 1024 * 256;
     public static final int     DATA_4K              = 1024 * 4;
-    public static final int     READ_BLOCK_SIZE      = ONLINE ? 1024 * 1024 * 4 : 1024 * 1024;
+    public static final int     READ_BLOCK_SIZE      = config_int(KVS_CONFIG_KVS_READ_BLOCK_SIZE, ONLINE ? 1024 * 1024 * 4 : 1024 * 1024);
     public static final int     DATA_COUNT_PER_BLOCK = READ_BLOCK_SIZE / VALUE_LEN;
+    public static final int     READ_BATCH_MAX       = 4;
+    public static final long    BLOCK_CACHE_SIZE     = config_long(KVS_CONFIG_KVS_BLOCK_CACHE_SIZE, 14L * READ_BLOCK_SIZE);
+    public static final int     READ_AHEAD           = 1;
+    public static final int     READ_BUF_POOL        = Math.max(READ_BATCH_MAX, READ_AHEAD + 1);
+    public static final int     CACHE_STRIPES        = 16;
+    public static final String  IO_ENGINE_BLOCKING   = "blocking";
+    public static final String  IO_ENGINE_THREAD     = "thread";
+    public static final String  IO_ENGINE            = ConfigManager.getConfigByDefalt(KVS_CONFIG_KVS_IO_ENGINE);
+    public static final boolean INDEX_SORTED         = config_bool(KVS_CONFIG_KVS_INDEX_SORTED);
+    public static final boolean INDEX_ASYNC          = config_bool(KVS_CONFIG_KVS_INDEX_ASYNC);
+    public static final boolean CLIENT_THIN          = config_bool(KVS_CONFIG_KVS_CLIENT_THIN);
+    public static final boolean READ_ADAPTIVE        = config_bool(KVS_CONFIG_KVS_READ_ADAPTIVE);
+    public static final int     READ_CONNECTIONS     = config_int(KVS_CONFIG_KVS_CLIENT_CONNECTIONS, 0);
+    public static final boolean CLIENT_NIO           = config_bool(KVS_CONFIG_KVS_CLIENT_NIO);
+    public static final String  COMMIT_SYNC_NONE     = "none";
+    public static final String  COMMIT_SYNC_BATCH    = "batch";
+    public static final String  COMMIT_SYNC_FLUSH    = "flush";
+    public static final int     COMMIT_SIZE          = config_int(KVS_CONFIG_KVS_COMMIT_SIZE, ONLINE ? DATA_1M : DATA_4K * 3);
+    public static final int     COMMIT_INTERVAL      = config_int(KVS_CONFIG_KVS_COMMIT_INTERVAL, 0);
+    public static final String  COMMIT_SYNC          = ConfigManager.getConfigByDefalt(KVS_CONFIG_KVS_COMMIT_SYNC);
+    // ms between the background syncs that move the crc checkpoint, 0 leaves it to the sync policy and close.
+    // Off by default with the blocking io engine, its sync would run on the timer under the partition monitor
+    public static final int     COMMIT_CHECKPOINT    = config_int(KVS_CONFIG_KVS_COMMIT_CHECKPOINT, IO_ENGINE_THREAD.equals(IO_ENGINE) ? 1000 : 0);
     public static final long    TIMEOUT              = ONLINE ? 9000 : 99999999;
+    // the compaction of the segments frees data disk, not slots, a partition still takes DATA_COUNT writes in all
+    public static final int     SEGMENT_SIZE         = config_int(KVS_CONFIG_KVS_SEGMENT_SIZE, 0);
+    public static final int     SEGMENT_SLOTS        = SEGMENT_SIZE / VALUE_LEN;
+    public static final int     COMPACT_RATIO        = config_int(KVS_CONFIG_KVS_COMPACT_RATIO, 50);
+    public static final int     COMPACT_INTERVAL     = config_int(KVS_CONFIG_KVS_COMPACT_INTERVAL, 1000);
+    public static final String  COMPRESS_NONE        = "none";
+    public static final String  COMPRESS_LZ4         = "lz4";
+    public static final String  COMPRESS             = ConfigManager.getConfigByDefalt(KVS_CONFIG_KVS_COMPRESS);
+    public static final boolean COMPRESS_WIRE        = config_bool(KVS_CONFIG_KVS_COMPRESS_WIRE);
+    public static final String  PLACEMENT_ROUND      = "round";
+    public static final String  PLACEMENT_SPACE      = "space";
+    public static final String  DATA_PLACEMENT       = ConfigManager.getConfigByDefalt(KVS_CONFIG_KVS_DATA_PLACEMENT);
     public static final String  PATH;
 
+    // the data files of the partitions are striped over DATA_PATHS, the index
+    // and temp files are kept in INDEX_PATH if it is set, else beside the data
+    public static final String[] DATA_PATHS;
+    public static final String   INDEX_PATH;
 
     static {
-        if (ONLINE) {
-            PATH = "/data/kvstore_admin/kv_store_admin/target/kv_store_admin/data/kk_db/";
+        String path = ConfigManager.getConfigByDefalt(KVS_CONFIG_KVS_DATA_PATH);
+        if (path == null || path.isEmpty()) {
+            if (ONLINE) {
+                path = "/data/kvstore_admin/kv_store_admin/target/kv_store_admin/data/kk_db/";
+            } else {
+                path = "/home/test/temp/huawei_race/kk_db/";
+            }
         } else {
-            PATH = "/home/test/temp/huawei_race/kk_db/";
+            path = dir_path(path);
+        }
+        PATH = path;
+        String   paths      = ConfigManager.getConfigByDefalt(KVS_CONFIG_KVS_DATA_PATHS);
+        String[] data_paths = paths == null ? new String[0] : paths.split(",");
+        int      count      = 0;
+        for (String p : data_paths) {
+            if (!p.trim().isEmpty()) {
+                data_paths[count++] = dir_path(p.trim());
+            }
+        }
+        DATA_PATHS = count == 0 ? new String[]{PATH} : Arrays.copyOf(data_paths, count);
+        String index_path = ConfigManager.getConfigByDefalt(KVS_CONFIG_KVS_INDEX_PATH);
+        INDEX_PATH = index_path == null || index_path.isEmpty() ? null : dir_path(index_path);
+    }
+
+    static {
+        check(PORT > 0 && PORT < 65536, KVS_CONFIG_KVS_PORT, PORT);
+        check(KV_INSTANCE > 0 && KV_INSTANCE <= KV_INSTANCE_MAX, KVS_CONFIG_KVS_INSTANCE, KV_INSTANCE);
+        check(SERVER_LOOPS > 0 && SERVER_LOOPS <= 256, KVS_CONFIG_KVS_SERVER_LOOPS, SERVER_LOOPS);
+        check(DATA_COUNT > 0 && DATA_COUNT <= Integer.MAX_VALUE / KEY_LEN - 1, KVS_CONFIG_KVS_DATA_COUNT, DATA_COUNT);
+        check(READ_BLOCK_SIZE >= VALUE_LEN && READ_BLOCK_SIZE <= DATA_1M * 64 && Integer.bitCount(READ_BLOCK_SIZE) == 1, KVS_CONFIG_KVS_READ_BLOCK_SIZE, READ_BLOCK_SIZE);
+        check(BLOCK_CACHE_SIZE >= READ_BLOCK_SIZE, KVS_CONFIG_KVS_BLOCK_CACHE_SIZE, BLOCK_CACHE_SIZE);
+        check(IO_ENGINE_BLOCKING.equals(IO_ENGINE) || IO_ENGINE_THREAD.equals(IO_ENGINE), KVS_CONFIG_KVS_IO_ENGINE, IO_ENGINE);
+        check(COMMIT_SIZE >= VALUE_LEN && COMMIT_SIZE <= DATA_1M * 64 && COMMIT_SIZE % VALUE_LEN == 0, KVS_CONFIG_KVS_COMMIT_SIZE, COMMIT_SIZE);
+        check(READ_CONNECTIONS >= 0 && READ_CONNECTIONS <= 64, KVS_CONFIG_KVS_CLIENT_CONNECTIONS, READ_CONNECTIONS);
+        check(COMMIT_INTERVAL >= 0, KVS_CONFIG_KVS_COMMIT_INTERVAL, COMMIT_INTERVAL);
+        check(COMMIT_CHECKPOINT >= 0, KVS_CONFIG_KVS_COMMIT_CHECKPOINT, COMMIT_CHECKPOINT);
+        // a block is never split over two segments, a compacted segment keeps a bitmap of 64 slots per long
+        check(SEGMENT_SIZE == 0 || SEGMENT_SIZE > 0 && SEGMENT_SIZE <= DATA_1M * 1024 && SEGMENT_SIZE % READ_BLOCK_SIZE == 0 && SEGMENT_SLOTS % 64 == 0, KVS_CONFIG_KVS_SEGMENT_SIZE, SEGMENT_SIZE);
+        check(COMPACT_RATIO >= 0 && COMPACT_RATIO <= 100, KVS_CONFIG_KVS_COMPACT_RATIO, COMPACT_RATIO);
+        check(COMPACT_INTERVAL > 0, KVS_CONFIG_KVS_COMPACT_INTERVAL, COMPACT_INTERVAL);
+        // the values are compressed when a segment is sealed, the single data file is never sealed
+        check(COMPRESS_NONE.equals(COMPRESS) || COMPRESS_LZ4.equals(COMPRESS) && SEGMENT_SIZE > 0, KVS_CONFIG_KVS_COMPRESS, COMPRESS);
+        check(PLACEMENT_ROUND.equals(DATA_PLACEMENT) || PLACEMENT_SPACE.equals(DATA_PLACEMENT), KVS_CONFIG_KVS_DATA_PLACEMENT, DATA_PLACEMENT);
+        check(COMMIT_SYNC_NONE.equals(COMMIT_SYNC) || COMMIT_SYNC_BATCH.equals(COMMIT_SYNC) || COMMIT_SYNC_FLUSH.equals(COMMIT_SYNC), KVS_CONFIG_KVS_COMMIT_SYNC, COMMIT_SYNC);
+    }
+
+    private static String dir_path(String path) {
+        return path.endsWith("/") ? path : path + "/";
+    }
+
+    private static boolean config_bool(Configuration config) {
+        String value = ConfigManager.getConfigByDefalt(config);
+        return "1".equals(value) || "true".equalsIgnoreCase(value);
+    }
+
+    private static int config_int(Configuration config, int default_value) {
+        long value = config_long(config, default_value);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new KVSException(KVSErrorCode.CONFIG_PARAM_ERROR, "param:[" + config.getParamName() + "] is out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private static long config_long(Configuration config, long default_value) {
+        String value = ConfigManager.getConfigByDefalt(config);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new KVSException(KVSErrorCode.CONFIG_PARAM_ERROR, "param:[" + config.getParamName() + "] is not a number: " + value, e);
+        }
+    }
+
+    private static void check(boolean valid, Configuration config, Object value) {
+        if (!valid) {
+            throw new KVSException(KVSErrorCode.CONFIG_PARAM_ERROR, "param:[" + config.getParamName() + "] is invalid: " + value);
         }
     }
 
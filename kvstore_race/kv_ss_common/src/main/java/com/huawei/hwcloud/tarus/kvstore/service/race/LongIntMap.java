@@ -20,6 +20,11 @@ import java.util.Arrays;
 import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.clothCover;
 
 /**
+ * Open addressing with linear probing, the home slot of a key is its
+ * fibonacci hash so that keys like prefix << 32 | i spread over the table.
+ * Probing wraps around the table end, and a removal shifts the following
+ * entries of the cluster back instead of leaving tombstones.
+ *
  * @author: wangkai
  **/
 public final class LongIntMap {
@@ -31,6 +36,7 @@ public final class LongIntMap {
     private       int    scanSize;
     private       int    size;
     private       int    mask;
+    private       int    shift;
     private       int    scanIndex;
     private       int    limit;
 
@@ -47,6 +53,7 @@ public final class LongIntMap {
         int c = clothCover(cap);
         this.cap = c;
         this.mask = c - 1;
+        this.shift = shift(c);
         this.loadFactor = Math.min(loadFactor, 0.75f);
         this.keys = new long[c];
         this.values = new int[c];
@@ -54,50 +61,34 @@ public final class LongIntMap {
         Arrays.fill(keys, -1);
     }
 
-    private static int indexOfKey(long[] keys, long key, int mask) {
-        int index = (int) (key & mask);
-        if (keys[index] == key) {
-            return index;
-        }
-        if (keys[index] == -1) {
-            return -1;
-        }
-        for (int i = index, cnt = keys.length; i < cnt; i++) {
-            if (keys[i] == key) {
-                return i;
-            }
-        }
-        for (int i = 1; i < index; i++) {
-            if (keys[i] == key) {
-                return i;
-            }
-        }
-        //will not happen
-        return -1;
+    static int shift(int cap) {
+        return 64 - Integer.numberOfTrailingZeros(cap);
+    }
 
+    // fibonacci hashing, the high bits of key * 2^64 / phi
+    static int hash(long key, int shift) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
     }
 
-    private static int indexOfFreeKey(long[] keys, long key, int mask) {
-        int  index = (int) (key & mask);
-        long _key  = keys[index];
-        if (_key == -1 || _key == key) {
-            return index;
-        }
-        for (int i = index, cnt = keys.length; i < cnt; i++) {
-            _key = keys[i];
-            if (_key == -1 || _key == key) {
+    private static int indexOfKey(long[] keys, long key, int mask, int shift) {
+        for (int i = hash(key, shift); ; i = (i + 1) & mask) {
+            long _key = keys[i];
+            if (_key == key) {
                 return i;
             }
+            if (_key == -1) {
+                return -1;
+            }
         }
-        for (int i = 1; i < index; i++) {
-            _key = keys[i];
+    }
+
+    private static int indexOfFreeKey(long[] keys, long key, int mask, int shift) {
+        for (int i = hash(key, shift); ; i = (i + 1) & mask) {
+            long _key = keys[i];
             if (_key == -1 || _key == key) {
                 return i;
             }
         }
-        //will not happen
-        return -1;
-
     }
 
     public void scan() {
@@ -110,7 +101,7 @@ public final class LongIntMap {
     }
 
     private int putVal(long key, int value, boolean absent) {
-        int res = put0(key, value, mask, keys, values, absent);
+        int res = put0(key, value, mask, shift, keys, values, absent);
         if (res == -1) {
             grow();
             return -1;
@@ -172,8 +163,8 @@ public final class LongIntMap {
         return values[index];
     }
 
-    private int put0(long key, int value, int mask, long[] keys, int[] values, boolean absent) {
-        int index = indexOfFreeKey(keys, key, mask);
+    private int put0(long key, int value, int mask, int shift, long[] keys, int[] values, boolean absent) {
+        int index = indexOfFreeKey(keys, key, mask, shift);
         if (keys[index] == key) {
             if (absent) {
                 return values[index];
@@ -194,6 +185,7 @@ public final class LongIntMap {
         if (size > limit) {
             int    cap    = clothCover(this.cap + 1);
             int    mask   = cap - 1;
+            int    shift  = shift(cap);
             long[] keys   = new long[cap];
             int[]  values = new int[cap];
             int    limit  = (int) (cap * loadFactor);
@@ -204,10 +196,11 @@ public final class LongIntMap {
                 if (index == -1) {
                     break;
                 }
-                put0(indexKey(index), indexValue(index), mask, keys, values, false);
+                put0(indexKey(index), indexValue(index), mask, shift, keys, values, false);
             }
             this.cap = cap;
             this.mask = mask;
+            this.shift = shift;
             this.keys = keys;
             this.values = values;
             this.limit = limit;
@@ -215,34 +208,34 @@ public final class LongIntMap {
     }
 
     public int get(long key) {
-        int index = indexOfKey(keys, key, mask);
+        int index = indexOfKey(keys, key, mask, shift);
         if (index == -1) {
             return -1;
         }
         return values[index];
     }
 
+    // backward shift: an entry moves into the hole unless its home slot lies cyclically in (hole, entry]
     private void remove_at(int index) {
-        long[] keys        = this.keys;
-        int[]  values      = this.values;
-        int    cap         = this.cap;
-        int    mask        = this.mask;
-        int    write_index = index;
-        int    read_index  = index + 1;
-        for (; read_index < cap; read_index++) {
-            long key = keys[read_index];
+        long[] keys   = this.keys;
+        int[]  values = this.values;
+        int    mask   = this.mask;
+        int    shift  = this.shift;
+        int    hole   = index;
+        for (int i = (index + 1) & mask; ; i = (i + 1) & mask) {
+            long key = keys[i];
             if (key == -1) {
                 break;
             }
-            if ((key & mask) == read_index) {
-                continue;
+            int home = hash(key, shift);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = key;
+                values[hole] = values[i];
+                hole = i;
             }
-            keys[write_index] = key;
-            values[write_index] = values[read_index];
-            write_index = read_index;
         }
-        keys[write_index] = -1;
-        values[write_index] = -1;
+        keys[hole] = -1;
+        values[hole] = -1;
     }
 
     public void finishScan() {
@@ -250,7 +243,7 @@ public final class LongIntMap {
     }
 
     public int remove(long key) {
-        int index = indexOfKey(keys, key, mask);
+        int index = indexOfKey(keys, key, mask, shift);
         if (index == -1) {
             return -1;
         }
@@ -287,7 +280,7 @@ public final class LongIntMap {
             if (index == -1) {
                 break;
             }
-            if ((key() & mask) != index) {
+            if (hash(key(), shift) != index) {
                 s++;
             }
         }
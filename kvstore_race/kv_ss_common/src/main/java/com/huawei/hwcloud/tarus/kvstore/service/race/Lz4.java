@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.firenio.common.Unsafe;
+
+/**
+ * The lz4 block format in plain java: a sequence is a token (literal length
+ * and match length - 4, 4 bits each, 15 continues in bytes of 255), the
+ * literals, the match offset as a short le and the rest of the match length.
+ * The last sequence has literals only, the last 5 bytes are always literals.
+ * <p>
+ * The compressor is greedy with one hash table of the 4 byte prefixes, an
+ * instance is used by one thread at a time.
+ *
+ * @author: wangkai
+ **/
+public final class Lz4 {
+
+    static final int MIN_MATCH     = 4;
+    static final int LAST_LITERALS = 5;
+    // no match starts in the last 12 bytes
+    static final int MF_LIMIT      = 12;
+    static final int MAX_DISTANCE  = 65535;
+    static final int HASH_LOG      = 14;
+
+    private final int[] table = new int[1 << HASH_LOG];
+
+    public static int max_length(int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int read_int(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | (b[i + 3] << 24);
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    /**
+     * compress len bytes of src from off into dst from dst_off, dst has room
+     * for {@link #max_length(int)} bytes
+     *
+     * @return the compressed length
+     */
+    public int compress(byte[] src, int off, int len, byte[] dst, int dst_off) {
+        int[] table  = this.table;
+        int   end    = off + len;
+        int   anchor = off;
+        int   op     = dst_off;
+        if (len > MF_LIMIT) {
+            Arrays.fill(table, -1);
+            int match_limit = end - MF_LIMIT;
+            int misses      = 0;
+            for (int ip = off; ip < match_limit; ) {
+                int seq = read_int(src, ip);
+                int h   = hash(seq);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref == -1 || ip - ref > MAX_DISTANCE || read_int(src, ref) != seq) {
+                    // the step grows over data that does not compress
+                    ip += 1 + (misses++ >>> 6);
+                    continue;
+                }
+                misses = 0;
+                for (; ip > anchor && ref > off && src[ip - 1] == src[ref - 1]; ) {
+                    ip--;
+                    ref--;
+                }
+                int match     = MIN_MATCH;
+                int match_max = end - LAST_LITERALS - ip;
+                for (; match < match_max && src[ip + match] == src[ref + match]; ) {
+                    match++;
+                }
+                op = write_sequence(dst, op, src, anchor, ip - anchor, ip - ref, match);
+                ip += match;
+                anchor = ip;
+            }
+        }
+        int literals = end - anchor;
+        int token    = Math.min(literals, 15) << 4;
+        dst[op++] = (byte) token;
+        if (literals >= 15) {
+            op = write_length(dst, op, literals - 15);
+        }
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dst_off;
+    }
+
+    private static int write_sequence(byte[] dst, int op, byte[] src, int lit_off, int literals, int offset, int match) {
+        int token_pos = op++;
+        int token     = Math.min(literals, 15) << 4;
+        if (literals >= 15) {
+            op = write_length(dst, op, literals - 15);
+        }
+        System.arraycopy(src, lit_off, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int match_len = match - MIN_MATCH;
+        token |= Math.min(match_len, 15);
+        if (match_len >= 15) {
+            op = write_length(dst, op, match_len - 15);
+        }
+        dst[token_pos] = (byte) token;
+        return op;
+    }
+
+    private static int write_length(byte[] dst, int op, int len) {
+        for (; len >= 255; len -= 255) {
+            dst[op++] = (byte) 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    /**
+     * decompress len bytes of src from off into dst from dst_off
+     *
+     * @return the decompressed length, -1 if src is corrupt or the result is
+     * longer than dst_len
+     */
+    public static int decompress(byte[] src, int off, int len, byte[] dst, int dst_off, int dst_len) {
+        int end    = off + len;
+        int op     = dst_off;
+        int op_end = dst_off + dst_len;
+        for (int ip = off; ip < end; ) {
+            int token    = src[ip++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                for (int b = 255; b == 255; ) {
+                    if (ip >= end) {
+                        return -1;
+                    }
+                    b = src[ip++] & 0xff;
+                    literals += b;
+                }
+            }
+            if (literals > end - ip || literals > op_end - op) {
+                return -1;
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end) {
+                break;
+            }
+            if (end - ip < 2) {
+                return -1;
+            }
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            int match = token & 15;
+            if (match == 15) {
+                for (int b = 255; b == 255; ) {
+                    if (ip >= end) {
+                        return -1;
+                    }
+                    b = src[ip++] & 0xff;
+                    match += b;
+                }
+            }
+            match += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < dst_off || match > op_end - op) {
+                return -1;
+            }
+            if (offset >= match) {
+                System.arraycopy(dst, ref, dst, op, match);
+            } else {
+                // the match overlaps its own output, a short offset repeats a pattern
+                for (int i = 0; i < match; i++) {
+                    dst[op + i] = dst[ref + i];
+                }
+            }
+            op += match;
+        }
+        return op - dst_off;
+    }
+
+    /**
+     * decompress len bytes of src from off into the direct buffer dst from
+     * index 0, dst is left at position the decompressed length. The runs are
+     * written through the address of dst with copyMemory, a match that
+     * overlaps its output a long at a time when it starts 8 bytes back or
+     * more, else a byte at a time.
+     *
+     * @return the decompressed length, -1 if src is corrupt or the result is
+     * longer than dst_len
+     */
+    public static int decompress(byte[] src, int off, int len, ByteBuffer dst, int dst_len) {
+        if (dst_len > dst.capacity()) {
+            return -1;
+        }
+        long address = Unsafe.address(dst);
+        int  end     = off + len;
+        int  op      = 0;
+        for (int ip = off; ip < end; ) {
+            int token    = src[ip++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                for (int b = 255; b == 255; ) {
+                    if (ip >= end) {
+                        return -1;
+                    }
+                    b = src[ip++] & 0xff;
+                    literals += b;
+                }
+            }
+            if (literals > end - ip || literals > dst_len - op) {
+                return -1;
+            }
+            Unsafe.copyMemory(src, Unsafe.ARRAY_BASE_OFFSET + ip, null, address + op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end) {
+                break;
+            }
+            if (end - ip < 2) {
+                return -1;
+            }
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            int match = token & 15;
+            if (match == 15) {
+                for (int b = 255; b == 255; ) {
+                    if (ip >= end) {
+                        return -1;
+                    }
+                    b = src[ip++] & 0xff;
+                    match += b;
+                }
+            }
+            match += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < 0 || match > dst_len - op) {
+                return -1;
+            }
+            long from = address + ref;
+            long to   = address + op;
+            if (offset >= match) {
+                Unsafe.copyMemory(from, to, match);
+            } else {
+                int i = 0;
+                if (offset >= 8) {
+                    // a long read 8 or more bytes back only reads bytes written before
+                    for (; i + 8 <= match; i += 8) {
+                        Unsafe.putLong(to + i, Unsafe.getLong(from + i));
+                    }
+                }
+                for (; i < match; i++) {
+                    Unsafe.putByte(to + i, Unsafe.getByte(from + i));
+                }
+            }
+            op += match;
+        }
+        dst.clear();
+        dst.position(op);
+        return op;
+    }
+
+}
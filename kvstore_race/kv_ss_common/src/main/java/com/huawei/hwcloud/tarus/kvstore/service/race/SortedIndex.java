@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Key to record index of the first records of a partition, sorted by key with
+ * the last record of every key only, looked up by binary search.
+ * <p>
+ * layout, little endian: header(64) | keys long[count] | records int[count],
+ * the header holds magic, version, the records covered and the count. The
+ * server writes it to a file, the client receives the same bytes.
+ *
+ * @author: wangkai
+ **/
+public final class SortedIndex {
+
+    public static final int HEADER  = 64;
+    static final        int MAGIC   = 0x4b565349;
+    static final        int VERSION = 1;
+
+    private final ByteBuffer buf;
+    private final int        records;
+    private final int        count;
+    private final int        values_off;
+
+    private SortedIndex(ByteBuffer buf) {
+        this.buf = buf;
+        this.records = buf.getInt(8);
+        this.count = buf.getInt(12);
+        this.values_off = HEADER + (count << 3);
+    }
+
+    /**
+     * @return null if buf does not hold a complete sorted index
+     */
+    public static SortedIndex wrap(ByteBuffer buf) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            return null;
+        }
+        if (buf.capacity() < length(buf.getInt(12))) {
+            return null;
+        }
+        return new SortedIndex(buf);
+    }
+
+    public static int length(int count) {
+        return HEADER + count * 12;
+    }
+
+    public static void write(ByteBuffer dst, long[] keys, int[] values, int count, int records) {
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        dst.putInt(0, MAGIC);
+        dst.putInt(4, VERSION);
+        dst.putInt(8, records);
+        dst.putInt(12, count);
+        int values_off = HEADER + (count << 3);
+        for (int i = 0; i < count; i++) {
+            dst.putLong(HEADER + (i << 3), keys[i]);
+            dst.putInt(values_off + (i << 2), values[i]);
+        }
+    }
+
+    /**
+     * lsd radix sort of the pairs by signed key, 8 bits per pass, the passes
+     * where all keys share the byte are skipped. The sort is stable, so the
+     * last one of equal keys is the latest record and is the one kept.
+     *
+     * @return the count of distinct keys, moved to the front
+     */
+    public static int sort(long[] keys, int[] values, int n) {
+        if (n == 0) {
+            return 0;
+        }
+        long[] src_k  = keys;
+        int[]  src_v  = values;
+        long[] dst_k  = new long[n];
+        int[]  dst_v  = new int[n];
+        int[]  counts = new int[256];
+        for (int pass = 0; pass < 8; pass++) {
+            int shift = pass << 3;
+            int flip  = pass == 7 ? 0x80 : 0;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[((int) (src_k[i] >>> shift) & 0xff) ^ flip]++;
+            }
+            if (counts[((int) (src_k[0] >>> shift) & 0xff) ^ flip] == n) {
+                continue;
+            }
+            for (int i = 0, sum = 0; i < 256; i++) {
+                int c = counts[i];
+                counts[i] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                long key = src_k[i];
+                int  pos = counts[((int) (key >>> shift) & 0xff) ^ flip]++;
+                dst_k[pos] = key;
+                dst_v[pos] = src_v[i];
+            }
+            long[] t_k = src_k;
+            int[]  t_v = src_v;
+            src_k = dst_k;
+            src_v = dst_v;
+            dst_k = t_k;
+            dst_v = t_v;
+        }
+        if (src_k != keys) {
+            System.arraycopy(src_k, 0, keys, 0, n);
+            System.arraycopy(src_v, 0, values, 0, n);
+        }
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (i + 1 < n && keys[i + 1] == keys[i]) {
+                continue;
+            }
+            keys[count] = keys[i];
+            values[count++] = values[i];
+        }
+        return count;
+    }
+
+    public int get(long key) {
+        ByteBuffer buf  = this.buf;
+        int        low  = 0;
+        int        high = count - 1;
+        for (; low <= high; ) {
+            int  mid     = (low + high) >>> 1;
+            long mid_key = buf.getLong(HEADER + (mid << 3));
+            if (mid_key < key) {
+                low = mid + 1;
+            } else if (mid_key > key) {
+                high = mid - 1;
+            } else {
+                return buf.getInt(values_off + (mid << 2));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * the sorted keys come from the records before this one
+     */
+    public int records() {
+        return records;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public ByteBuffer buf() {
+        return buf;
+    }
+
+}
@@ -25,6 +25,7 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -130,6 +131,23 @@ public class Util {
         }
     }
 
+    // a rename in dir is durable once the dir is synced, the file data is not synced by this
+    public static void sync_dir(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            printException(e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void put_int_le(byte[] data, int v, int off) {
+        data[off] = (byte) v;
+        data[off + 1] = (byte) (v >>> 8);
+        data[off + 2] = (byte) (v >>> 16);
+        data[off + 3] = (byte) (v >>> 24);
+    }
+
     public static int clothCover(int v) {
         int n = 2;
         for (; n < v; )
@@ -137,16 +155,17 @@ public class Util {
         return n;
     }
 
-    public static byte get_header(int ins_id, int action) {
-        return (byte) ((ins_id << 4) | action);
-    }
-
-    public static int get_ins_id(int header) {
-        return (header >> 4);
+    public static void put_frame_header(byte[] buf, int partition, int action, int body_len) {
+        put_frame_header(buf, partition, action, 0, body_len);
     }
 
-    public static int get_action(int header) {
-        return header & 0xf;
+    public static void put_frame_header(byte[] buf, int partition, int action, int flags, int body_len) {
+        buf[0] = (byte) ActionType.FRAME_MAGIC;
+        buf[1] = (byte) ActionType.FRAME_VERSION;
+        buf[2] = (byte) action;
+        buf[3] = (byte) flags;
+        put_int_le(buf, partition, 4);
+        put_int_le(buf, body_len, 8);
     }
 
     public static ByteBuf getChannelByteBuf(Channel channel) {
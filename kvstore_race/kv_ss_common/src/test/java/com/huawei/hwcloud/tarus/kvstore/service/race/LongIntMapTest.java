@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The map against a HashMap, with keys picked by their home slot so that the
+ * clusters wrap around the table end and the removals shift entries back
+ * across slot 0.
+ *
+ * @author: wangkai
+ **/
+public class LongIntMapTest {
+
+    // a table of 16 slots holds 12 keys before it grows
+    static final int CAP   = 16;
+    static final int SHIFT = LongIntMap.shift(CAP);
+
+    // count keys whose home slot is home in a table of CAP slots
+    static List<Long> keys_at(int home, int count, long from) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = from; keys.size() < count; key++) {
+            if (LongIntMap.hash(key, SHIFT) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    static void check(Map<Long, Integer> expect, LongIntMap map, List<Long> keys) {
+        assertEquals(expect.size(), map.size());
+        for (long key : keys) {
+            Integer value = expect.get(key);
+            assertEquals("key: " + key, value == null ? -1 : value, map.get(key));
+        }
+    }
+
+    @Test
+    public void remove_in_wrapped_cluster() {
+        // homes 14, 15 and 0 make one cluster from slot 14 over the end up to slot 5
+        List<Long> keys = new ArrayList<>();
+        keys.addAll(keys_at(14, 2, 0));
+        keys.addAll(keys_at(15, 3, 0));
+        keys.addAll(keys_at(0, 3, 0));
+        for (int i = 0; i < keys.size(); i++) {
+            Map<Long, Integer> expect = new HashMap<>();
+            LongIntMap         map    = new LongIntMap(CAP);
+            for (int j = 0; j < keys.size(); j++) {
+                map.put(keys.get(j), j);
+                expect.put(keys.get(j), j);
+            }
+            assertEquals(i, map.remove(keys.get(i)));
+            expect.remove(keys.get(i));
+            check(expect, map, keys);
+            // the hole left by the removal is reused
+            map.put(keys.get(i), i);
+            expect.put(keys.get(i), i);
+            check(expect, map, keys);
+        }
+    }
+
+    @Test
+    public void random_ops() {
+        Random     random = new Random(7);
+        List<Long> keys   = new ArrayList<>();
+        // most keys crowd the slots around the table end, the rest spread
+        for (int home : new int[]{13, 14, 15, 0, 1}) {
+            keys.addAll(keys_at(home, 8, 0));
+        }
+        for (int i = 0; i < 24; i++) {
+            keys.add(random.nextLong() & Long.MAX_VALUE);
+        }
+        for (int round = 0; round < 200; round++) {
+            Map<Long, Integer> expect = new HashMap<>();
+            // a small table that grows, and one that holds all the keys in place
+            LongIntMap map = round % 2 == 0 ? new LongIntMap(CAP) : new LongIntMap(keys.size() * 2);
+            for (int op = 0; op < 2000; op++) {
+                long    key    = keys.get(random.nextInt(keys.size()));
+                int     value  = random.nextInt(Integer.MAX_VALUE);
+                Integer old;
+                int     res;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        old = expect.put(key, value);
+                        res = map.put(key, value);
+                        break;
+                    case 1:
+                        old = expect.putIfAbsent(key, value);
+                        res = map.putIfAbsent(key, value);
+                        break;
+                    default:
+                        old = expect.remove(key);
+                        res = map.remove(key);
+                        break;
+                }
+                assertEquals("round: " + round + ", op: " + op + ", key: " + key, old == null ? -1 : old, res);
+                check(expect, map, keys);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.service.race;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through the compressor and both decompressors: random bytes
+ * that do not compress, periodic bytes whose matches overlap their output
+ * by 1, 3 and 12 bytes or do not overlap, and text. Corrupt input and a too
+ * short output give -1.
+ *
+ * @author: wangkai
+ **/
+public class Lz4Test {
+
+    static final String[] WORDS = {"the", "partition", "record", "of", "a", "key", "value", "segment", "is", "read", "written", "and", "block", "cache", "client", "server"};
+
+    final Lz4 lz4 = new Lz4();
+
+    static byte[] random(int len, long seed) {
+        byte[] b = new byte[len];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    static byte[] periodic(int len, int period, long seed) {
+        byte[] pattern = random(period, seed);
+        byte[] b       = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = pattern[i % period];
+        }
+        return b;
+    }
+
+    static byte[] text(int len, long seed) {
+        Random        r  = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        for (; sb.length() < len; ) {
+            sb.append(WORDS[r.nextInt(WORDS.length)]).append(r.nextInt(8) == 0 ? ". " : " ");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.US_ASCII), len);
+    }
+
+    byte[] compress(byte[] src) {
+        byte[] dst = new byte[Lz4.max_length(src.length)];
+        int    len = lz4.compress(src, 0, src.length, dst, 0);
+        return Arrays.copyOf(dst, len);
+    }
+
+    static int decompress_direct(byte[] src, ByteBuffer dst, int dst_len) {
+        dst.clear();
+        return Lz4.decompress(src, 0, src.length, dst, dst_len);
+    }
+
+    void round_trip(byte[] data) {
+        byte[] packed = compress(data);
+        // the array decompressor from an offset, with room to spare after the result
+        byte[] out = new byte[data.length + 32];
+        assertEquals(data.length, Lz4.decompress(packed, 0, packed.length, out, 7, data.length + 25));
+        assertArrayEquals(data, Arrays.copyOfRange(out, 7, 7 + data.length));
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 32);
+        assertEquals(data.length, decompress_direct(packed, direct, direct.capacity()));
+        assertEquals(data.length, direct.position());
+        byte[] read = new byte[data.length];
+        direct.flip();
+        direct.get(read);
+        assertArrayEquals(data, read);
+    }
+
+    @Test
+    public void random_bytes() {
+        for (int len : new int[]{0, 1, 12, 13, 100, 4096, 65536}) {
+            round_trip(random(len, len));
+        }
+    }
+
+    @Test
+    public void periodic_bytes() {
+        for (int period : new int[]{1, 3, 12, 300}) {
+            byte[] data = periodic(65536, period, period);
+            assertTrue(compress(data).length < data.length / 10);
+            round_trip(data);
+        }
+    }
+
+    @Test
+    public void text_bytes() {
+        byte[] data = text(65536, 1);
+        assertTrue(compress(data).length < data.length / 2);
+        round_trip(data);
+    }
+
+    @Test
+    public void corrupt_input() {
+        byte[][] corrupt = {
+                // 20 literals, none follow
+                {(byte) 0xf0, 5},
+                // a literal length that goes on past the end
+                {(byte) 0xf0, (byte) 0xff},
+                // a match 2 bytes back after 1 byte of output
+                {0x10, 'a', 2, 0},
+                // a match at offset 0
+                {0x10, 'a', 0, 0},
+                // a match without its offset
+                {0x10, 'a', 1}};
+        byte[]     out    = new byte[1024];
+        ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+        for (byte[] src : corrupt) {
+            String msg = Arrays.toString(src);
+            assertEquals(msg, -1, Lz4.decompress(src, 0, src.length, out, 0, out.length));
+            assertEquals(msg, -1, decompress_direct(src, direct, direct.capacity()));
+        }
+    }
+
+    @Test
+    public void output_too_short() {
+        for (byte[] data : new byte[][]{random(4096, 2), periodic(4096, 3, 3), text(4096, 4)}) {
+            byte[] packed = compress(data);
+            assertEquals(-1, Lz4.decompress(packed, 0, packed.length, new byte[4096], 0, 4095));
+            ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+            assertEquals(-1, decompress_direct(packed, direct, 4095));
+            // dst_len past the capacity of the buffer
+            assertEquals(-1, decompress_direct(packed, direct, 4097));
+        }
+    }
+
+}
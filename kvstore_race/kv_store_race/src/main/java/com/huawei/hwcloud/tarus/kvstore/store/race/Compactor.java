@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.store.race;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
+
+/**
+ * One thread for the segment compaction of all the partitions, every
+ * COMPACT_INTERVAL ms it compacts the segments over COMPACT_RATIO of each
+ * partition, one segment at a time so that the disks keep serving reads.
+ *
+ * @author: wangkai
+ **/
+final class Compactor implements Runnable {
+
+    static final List<SegmentChannel> CHANNELS = new CopyOnWriteArrayList<>();
+    static Thread thread;
+
+    static synchronized void register(SegmentChannel channel) {
+        CHANNELS.add(channel);
+        if (thread == null) {
+            thread = new Thread(new Compactor(), "kvs-compactor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    static void unregister(SegmentChannel channel) {
+        CHANNELS.remove(channel);
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocateDirect(READ_BLOCK_SIZE);
+
+    @Override
+    public void run() {
+        for (; ; ) {
+            try {
+                Thread.sleep(COMPACT_INTERVAL);
+            } catch (InterruptedException e) {
+                printException(e);
+                return;
+            }
+            for (SegmentChannel channel : CHANNELS) {
+                compact(channel);
+            }
+        }
+    }
+
+    private void compact(SegmentChannel channel) {
+        for (; ; ) {
+            int   segment;
+            int[] live;
+            synchronized (channel.store) {
+                segment = channel.pick_compact();
+                if (segment == -1) {
+                    return;
+                }
+                live = channel.store.live_slots(segment);
+            }
+            try {
+                channel.compact(segment, live, buf);
+            } catch (Exception e) {
+                // retried at the next round
+                printException(e);
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.store.race;
+
+import java.nio.ByteOrder;
+
+import com.firenio.common.Unsafe;
+
+/**
+ * CRC32C (Castagnoli) of off heap memory, slicing by 8. The jdk has one
+ * from 9 on only.
+ *
+ * @author: wangkai
+ **/
+final class Crc32c {
+
+    static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    static final int[]   TABLE         = new int[8 * 256];
+
+    static {
+        int[] t = TABLE;
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+            }
+            t[n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            int c = t[n];
+            for (int k = 1; k < 8; k++) {
+                c = t[c & 0xff] ^ (c >>> 8);
+                t[(k << 8) + n] = c;
+            }
+        }
+    }
+
+    // the crc of the 8 bytes of v in little endian
+    static int update(int crc, long v) {
+        return ~step(~crc, v);
+    }
+
+    static int update(int crc, long address, int len) {
+        int c = ~crc;
+        int i = 0;
+        if (LITTLE_ENDIAN) {
+            for (; i + 8 <= len; i += 8) {
+                c = step(c, Unsafe.getLong(address + i));
+            }
+        }
+        for (; i < len; i++) {
+            c = TABLE[(c ^ Unsafe.getByte(address + i)) & 0xff] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+
+    private static int step(int c, long v) {
+        int[] t  = TABLE;
+        int   lo = (int) v ^ c;
+        int   hi = (int) (v >>> 32);
+        return t[0x700 + (lo & 0xff)] ^ t[0x600 + ((lo >>> 8) & 0xff)] ^ t[0x500 + ((lo >>> 16) & 0xff)] ^ t[0x400 + (lo >>> 24)]
+                ^ t[0x300 + (hi & 0xff)] ^ t[0x200 + ((hi >>> 8) & 0xff)] ^ t[0x100 + ((hi >>> 16) & 0xff)] ^ t[hi >>> 24];
+    }
+
+}
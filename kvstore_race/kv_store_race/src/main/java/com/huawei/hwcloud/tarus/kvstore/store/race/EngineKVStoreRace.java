@@ -6,8 +6,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
 
 import com.firenio.buffer.ByteBuf;
 import com.firenio.common.Unsafe;
@@ -16,186 +23,968 @@ import com.firenio.component.Channel;
 import com.firenio.component.Native;
 import com.huawei.hwcloud.tarus.kvstore.exception.KVSException;
 import com.huawei.hwcloud.tarus.kvstore.service.race.LongIntMap;
+import com.huawei.hwcloud.tarus.kvstore.service.race.Lz4;
+import com.huawei.hwcloud.tarus.kvstore.service.race.SortedIndex;
+import com.huawei.hwcloud.tarus.kvstore.store.race.ServerCodec.ChannelCache;
 
+import static com.huawei.hwcloud.tarus.kvstore.service.race.ActionType.*;
 import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
 import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
 
+/**
+ * A partition of the store. The codec calls it under its monitor, as the
+ * connections of one partition may be served by different event loops. The
+ * io jobs never take that monitor, a writer waits for room in the temp ring on
+ * persist_lock before it takes the monitor. init, flush and close run their
+ * disk work as io jobs and answer from the event loop of the channel, so with
+ * the thread io engine nothing waits for the disk while the monitor is held.
+ * The blocking io engine runs each job inline, its disk work still happens on
+ * the event loop under the monitor.
+ */
 public class EngineKVStoreRace {
 
-    static final int          TEMP_FILE_LEN = ONLINE ? 256 : 3;
-    static final OpenOption[] FC_OPS        = new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
+    // a group commit writes at most one part of the temp ring
+    static final int          TEMP_FILE_LEN      = COMMIT_SIZE / VALUE_LEN;
+    // the temp file is a ring of two parts, one is filled while the other one is written to the data file
+    static final int          TEMP_SLOTS         = TEMP_FILE_LEN * 2;
+    static final long         COMMIT_INTERVAL_NS = COMMIT_INTERVAL * 1000_000L;
+    static final boolean      SYNC_BATCH         = COMMIT_SYNC_BATCH.equals(COMMIT_SYNC);
+    static final boolean      SYNC_FLUSH         = COMMIT_SYNC_FLUSH.equals(COMMIT_SYNC);
+    static final OpenOption[] FC_OPS             = new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
 
+    // the new partitions placed in each data dir, a new partition is expected to grow to PARTITION_SIZE
+    static final long[]       PLACED             = new long[DATA_PATHS.length];
+    static final long         PARTITION_SIZE     = (long) DATA_COUNT * VALUE_LEN;
+
+    // the crc file: magic, clean shutdown flag, the records checked durable, then a crc32c of the key and value of each slot
+    static final long         CRC_MAGIC          = 0x4b56534352430001L;
+    static final int          CRC_CLEAN          = 8;
+    static final int          CRC_CHECKED        = 16;
+    static final int          CRC_HEAD           = 64;
+
+    static final ThreadLocal<Lz4Buf> LZ4_BUF = ThreadLocal.withInitial(Lz4Buf::new);
+
+    // the timers of all the partitions, a task takes the monitor of its partition for a moment only
+    static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kvs-commit-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final Object     persist_lock = new Object();
     FileChannel      index_channel;
     FileChannel      temp_channel;
-    DFileChannel     data_channel;
+    FileChannel      crc_channel;
+    DataChannel      data_channel;
+    IoEngine         io;
     MappedByteBuffer index_buf;
     MappedByteBuffer temp_buf;
+    MappedByteBuffer crc_buf;
+    SortedFile       sorted;
+    LongIntMap       key_map;
+    File             sorted_file;
     long             temp_buf_addr;
-    long             data_write_cost = 0;
-    boolean          p_init          = false;
+    long             write_slot;
+    long             append_slot;
+    long             checkpoint_slot;
+    volatile long    persist_slot;
+    long             commit_start;
+    long             commit_count;
+    long             commit_bytes;
+    long             commit_cost;
+    long             commit_max;
+    long             sync_count;
+    long             sync_cost;
+    boolean          p_init = false;
+    // set by the io job that opened the files, read after it on the io engine or from a completion
+    boolean          opened;
     int              inst_id;
+    // the background sync of the checkpoint, without a sync per batch
+    ScheduledFuture<?> checkpoint_task;
 
-    public boolean init(final int inst_id) {
+    /**
+     * open the partition if it is not open yet, then run done under the
+     * monitor on the event loop of ch. The files are mapped, recovered and
+     * verified by a job of the io engine, done finds {@link #opened} false if
+     * that failed.
+     */
+    public void init(Channel ch, int inst_id, Runnable done) {
         if (p_init) {
             log("already init");
-            return true;
+        } else {
+            this.p_init = true;
+            this.inst_id = inst_id;
+            // the io engine of the last close may still be writing the files
+            IoEngine closing = this.io;
+            this.io = IoEngine.create(inst_id);
+            io.execute(() -> {
+                if (closing != null) {
+                    closing.await_close();
+                }
+                open_files(inst_id);
+            });
+            if (COMMIT_CHECKPOINT > 0 && !SYNC_BATCH) {
+                this.checkpoint_slot = -1;
+                this.checkpoint_task = TIMER.scheduleWithFixedDelay(this::checkpoint, COMMIT_CHECKPOINT, COMMIT_CHECKPOINT, TimeUnit.MILLISECONDS);
+            }
         }
-        this.p_init = true;
-        this.inst_id = inst_id;
+        IoEngine io = this.io;
+        io.execute(() -> io.complete(ch, () -> {
+            synchronized (this) {
+                done.run();
+            }
+        }));
+    }
+
+    private void open_files(int inst_id) {
         log("file_size: " + inst_id);
-        String root_path = PATH;
-        File   root      = new File(PATH);
-        if (!root.exists()) {
-            log("root not exists: " + root_path);
-            root.mkdirs();
-        }
-        File data_file  = new File(root_path + inst_id + "_data");
-        File index_file = new File(root_path + inst_id + "_index");
-        File temp_file  = new File(root_path + inst_id + "_temp");
+        String data_path  = data_dir(inst_id);
+        String index_path = INDEX_PATH == null ? data_path : INDEX_PATH;
+        mkdirs(index_path);
+        File data_file  = new File(data_path + inst_id + "_data");
+        File index_file = new File(index_path + inst_id + "_index");
+        File temp_file  = new File(index_path + inst_id + "_temp");
+        File crc_file   = new File(index_path + inst_id + "_crc");
+        this.sorted_file = new File(index_path + inst_id + "_sorted");
         this.index_channel = open(index_file, FC_OPS);
         this.temp_channel = open(temp_file, FC_OPS);
-        this.data_channel = new DFileChannel(data_file);
+        this.crc_channel = open(crc_file, FC_OPS);
+        this.data_channel = SEGMENT_SIZE > 0 ? new SegmentChannel(this, data_file) : new DFileChannel(data_file);
         FileChannel index_channel = this.index_channel;
         log("d_size: " + data_file.length() + ", i_size: " + index_file.length() + ", t_size: " + temp_file.length());
         try {
             long file_size = index_channel.size();
+            long temp_size = temp_channel.size();
+            this.temp_buf = map(temp_channel, 0, TEMP_SLOTS * VALUE_LEN);
+            this.temp_buf_addr = Unsafe.address(temp_buf);
+            this.crc_buf = map(crc_channel, 0, CRC_HEAD + 4L * DATA_COUNT);
             if (file_size == 0) {
                 log("open partition: " + inst_id + ",path: " + data_file.getAbsolutePath());
                 int              size      = DATA_COUNT * KEY_LEN;
                 MappedByteBuffer index_buf = map(index_channel, 0, size);
-                MappedByteBuffer temp_buf  = map(temp_channel, 0, TEMP_FILE_LEN * VALUE_LEN);
                 index_buf.position(KEY_LEN);
                 this.index_buf = index_buf;
-                this.temp_buf = temp_buf;
-                this.temp_buf_addr = Unsafe.address(temp_buf);
+                reset_slot(0);
             } else {
                 log("load partition: " + inst_id + ",path: " + data_file.getAbsolutePath());
                 MappedByteBuffer index_buf = map(index_channel, 0, file_size);
-                MappedByteBuffer temp_buf  = map(temp_channel, 0, TEMP_FILE_LEN * VALUE_LEN);
                 long             address   = Unsafe.address(index_buf);
-                long             end       = file_size + address;
                 long             index_pos = Unsafe.getLong(address);
                 log("index pos: " + index_pos);
+                if (index_pos > file_size || index_pos > 0 && (index_pos < KEY_LEN || (index_pos & 7) != 0)) {
+                    // torn, the records up to the end of the file are checked by their crc
+                    log("bad index pos: " + index_pos + ", inst_id: " + inst_id);
+                    index_pos = file_size & ~7L;
+                }
                 if (index_pos > 0) {
                     long index_size = (index_pos - 8) >>> 3;
                     log("index size: " + index_size);
                     index_buf.position((int) (index_pos));
-                    long expect_pos  = 1L * index_size * VALUE_LEN;
-                    int  recover_len = (int) (expect_pos - data_channel.file_size());
-                    if (recover_len > 0) {
-                        data_channel.write(temp_buf_addr, recover_len);
-                    }
-                    data_channel.set_write_pos(expect_pos);
+                    recover(index_size, (int) (temp_size / VALUE_LEN));
                 } else {
                     index_buf.position(KEY_LEN);
+                    reset_slot(0);
                 }
-                this.temp_buf = temp_buf;
-                this.temp_buf_addr = Unsafe.address(temp_buf);
                 this.index_buf = index_buf;
             }
         } catch (IOException e) {
             printException(e);
             throw new RuntimeException(e);
         }
-        return true;
+        verify_records();
+        if (INDEX_SORTED) {
+            open_sorted();
+        }
+        if (data_channel instanceof SegmentChannel) {
+            // the garbage of the segments is counted from the key map
+            build_key_map();
+            ((SegmentChannel) data_channel).start_compact();
+        }
+        this.opened = true;
+    }
+
+    /**
+     * the data dir of a partition, a partition found in one of the data dirs
+     * stays there, a new one is placed by kvs.data.placement: round robin by
+     * its id, or in the dir with the most usable space left after the new
+     * partitions this process already placed there
+     */
+    static String data_dir(int inst_id) {
+        String[] paths = DATA_PATHS;
+        for (String path : paths) {
+            if (new File(path + inst_id + "_data").exists()) {
+                return path;
+            }
+        }
+        if (!PLACEMENT_SPACE.equals(DATA_PLACEMENT) || paths.length == 1) {
+            String path = paths[inst_id % paths.length];
+            mkdirs(path);
+            return path;
+        }
+        synchronized (PLACED) {
+            int  best       = 0;
+            long best_space = Long.MIN_VALUE;
+            for (int i = 0; i < paths.length; i++) {
+                mkdirs(paths[i]);
+                long space = new File(paths[i]).getUsableSpace() - PLACED[i] * PARTITION_SIZE;
+                if (space > best_space) {
+                    best = i;
+                    best_space = space;
+                }
+            }
+            PLACED[best]++;
+            log("place partition: " + inst_id + ", path: " + paths[best] + ", space: " + best_space);
+            return paths[best];
+        }
+    }
+
+    private static void mkdirs(String path) {
+        File root = new File(path);
+        if (!root.exists()) {
+            log("root not exists: " + path);
+            root.mkdirs();
+        }
+    }
+
+    /**
+     * after a clean shutdown the records are trusted. Else the records from
+     * the last checkpoint on, the records known durable at the last sync, are
+     * checked against their crc, and the partition is cut at the first record
+     * that does not match. A partition of an older version without crc file
+     * is trusted as it is and checked from then on.
+     */
+    private void verify_records() {
+        MappedByteBuffer crc_buf = this.crc_buf;
+        long             records = index_records();
+        if (crc_buf.getLong(0) != CRC_MAGIC) {
+            if (records > 0) {
+                log("no crc, trust records: " + records + ", inst_id: " + inst_id);
+            }
+            crc_buf.putLong(CRC_CHECKED, records);
+            crc_buf.putLong(0, CRC_MAGIC);
+        } else if (crc_buf.getLong(CRC_CLEAN) == 1) {
+            log("clean shutdown, records: " + records + ", inst_id: " + inst_id);
+        } else {
+            long st      = System.nanoTime();
+            long checked = Math.min(crc_buf.getLong(CRC_CHECKED), records);
+            long valid   = scan_records(checked, records);
+            log("verify records: " + checked + " - " + records + ", valid: " + valid + ", cost(ms): " + ((System.nanoTime() - st) / 1000_000) + ", inst_id: " + inst_id);
+            if (valid < records) {
+                log("truncate partition: " + inst_id + ", records: " + records + " -> " + valid);
+                index_buf.position((int) (KEY_LEN + (valid << 3)));
+                index_buf.putLong(0, index_buf.position());
+                data_channel.set_write_pos(valid * VALUE_LEN);
+                reset_slot(valid);
+            }
+            crc_buf.putLong(CRC_CHECKED, valid);
+        }
+        // unclean from now on until close marks it again
+        crc_buf.putLong(CRC_CLEAN, 0);
+        index_buf.force();
+        crc_buf.force();
+    }
+
+    // the first record from start on that does not match its crc, or end
+    private long scan_records(long start, long end) {
+        ByteBuffer index_buf = this.index_buf;
+        ByteBuffer crc_buf   = this.crc_buf;
+        ByteBuffer buf       = ByteBuffer.allocateDirect(READ_BLOCK_SIZE);
+        long       address   = Unsafe.address(buf);
+        for (long slot = start; slot < end; ) {
+            int count = (int) Math.min(end - slot, DATA_COUNT_PER_BLOCK);
+            int read  = data_channel.pread(buf, slot * VALUE_LEN, count * VALUE_LEN) / VALUE_LEN;
+            for (int i = 0; i < read; i++, slot++) {
+                if (!data_channel.stored(slot)) {
+                    continue;
+                }
+                long key = index_buf.getLong((int) (KEY_LEN + (slot << 3)));
+                int  crc = Crc32c.update(Crc32c.update(0, key), address + 1L * i * VALUE_LEN, VALUE_LEN);
+                if (crc != crc_buf.getInt((int) (CRC_HEAD + (slot << 2)))) {
+                    return slot;
+                }
+            }
+            if (read < count) {
+                return slot;
+            }
+        }
+        return end;
+    }
+
+    int index_records() {
+        return (index_buf.position() - KEY_LEN) >>> 3;
+    }
+
+    private void open_sorted() {
+        if (!sorted_file.exists()) {
+            return;
+        }
+        FileChannel      channel = open(sorted_file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buf     = map(channel, 0, channel_size(channel));
+        Util.close(channel);
+        SortedIndex sorted = SortedIndex.wrap(buf);
+        if (sorted == null || sorted.records() > index_records()) {
+            log("drop sorted index: " + sorted_file.getAbsolutePath());
+            release_mapped_buf(buf);
+            return;
+        }
+        this.sorted = new SortedFile(buf, sorted);
+        log("open sorted index, records: " + sorted.records() + ", count: " + sorted.count() + ", inst_id: " + inst_id);
     }
 
-    public void write(final long key, final ByteBuf value) {
-        ByteBuffer index_buf    = this.index_buf;
-        ByteBuffer temp_buf     = this.temp_buf;
-        int        temp_buf_pos = temp_buf.position();
-        long       src_addr     = value.address() + value.absReadIndex();
-        long       dst_addr     = temp_buf_addr + temp_buf_pos;
+    // the sorted index for an init sort response, the channel releases it after the response
+    SortedFile retain_sorted() {
+        SortedFile sorted = this.sorted;
+        if (sorted != null) {
+            sorted.retain();
+        }
+        return sorted;
+    }
+
+    private void release_sorted() {
+        if (sorted != null) {
+            sorted.release();
+            sorted = null;
+        }
+    }
+
+    /**
+     * rewrite the sorted index at close when records were added since the
+     * last one, the partitions sort one at a time to bound the heap they take
+     */
+    private void build_sorted() {
+        int records = index_records();
+        if (sorted != null && sorted.index.records() == records || records == 0) {
+            return;
+        }
+        long st = System.nanoTime();
+        int  count;
+        synchronized (SortedIndex.class) {
+            ByteBuffer index_buf = this.index_buf;
+            long[]     keys      = new long[records];
+            int[]      values    = new int[records];
+            for (int i = 0; i < records; i++) {
+                keys[i] = index_buf.getLong(KEY_LEN + (i << 3));
+                values[i] = i;
+            }
+            count = SortedIndex.sort(keys, values, records);
+            File tmp_file = new File(sorted_file.getAbsolutePath() + ".tmp");
+            tmp_file.delete();
+            FileChannel      channel = open(tmp_file, FC_OPS);
+            MappedByteBuffer buf     = map(channel, 0, SortedIndex.length(count));
+            SortedIndex.write(buf, keys, values, count, records);
+            buf.force();
+            release_mapped_buf(buf);
+            Util.close(channel);
+            release_sorted();
+            try {
+                Files.move(tmp_file.toPath(), sorted_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                printException(e);
+                throw new RuntimeException(e);
+            }
+        }
+        open_sorted();
+        log("build sorted index, records: " + records + ", count: " + count + ", cost(ms): " + ((System.nanoTime() - st) / 1000_000) + ", inst_id: " + inst_id);
+    }
+
+    /**
+     * the values not in the data file yet are still in the temp ring, slot s
+     * is at s % ring_slots, the ring of the last run may be sized by another
+     * commit size
+     */
+    private void recover(long index_size, int ring_slots) throws IOException {
+        DataChannel      data_channel = this.data_channel;
+        MappedByteBuffer ring         = temp_buf;
+        long             ring_addr    = temp_buf_addr;
+        if (ring_slots != TEMP_SLOTS) {
+            log("temp ring resized: " + ring_slots + " -> " + TEMP_SLOTS + ", inst_id: " + inst_id);
+            if (ring_slots > 0) {
+                ring = map(temp_channel, 0, 1L * ring_slots * VALUE_LEN);
+                ring_addr = Unsafe.address(ring);
+            }
+        }
+        long file_slot = Math.min(data_channel.file_size() / VALUE_LEN, index_size);
+        if (index_size - file_slot > ring_slots) {
+            log("lost values: " + (index_size - file_slot - ring_slots) + ", inst_id: " + inst_id);
+            file_slot = index_size - ring_slots;
+        }
+        data_channel.set_write_pos(file_slot * VALUE_LEN);
+        for (long slot = file_slot; slot < index_size; ) {
+            int off = (int) (slot % ring_slots);
+            int len = (int) Math.min(index_size - slot, ring_slots - off);
+            data_channel.write(ring_addr + 1L * off * VALUE_LEN, len * VALUE_LEN);
+            slot += len;
+        }
+        log("recover values: " + (index_size - file_slot) + ", inst_id: " + inst_id);
+        if (ring != temp_buf) {
+            release_mapped_buf(ring);
+            if (ring_slots > TEMP_SLOTS) {
+                temp_channel.truncate(1L * TEMP_SLOTS * VALUE_LEN);
+            }
+        }
+        reset_slot(index_size);
+    }
+
+    private void reset_slot(long slot) {
+        this.write_slot = slot;
+        this.append_slot = slot;
+        this.persist_slot = slot;
+    }
+
+    /**
+     * wait until the temp ring has room for the next write. The caller does
+     * not hold the monitor, it writes under the monitor after and waits again
+     * if another channel of the partition took the room meanwhile.
+     */
+    void wait_room() {
+        long slot;
+        synchronized (this) {
+            slot = write_slot;
+        }
+        if (slot - persist_slot >= TEMP_SLOTS) {
+            wait_persist(slot - TEMP_SLOTS + 1);
+        }
+    }
+
+    /**
+     * @return false if the temp ring is full, the value is not read then
+     */
+    public boolean write(final long key, final ByteBuf value) {
+        ByteBuffer index_buf = this.index_buf;
+        long       slot      = write_slot;
+        if (slot - persist_slot >= TEMP_SLOTS) {
+            return false;
+        }
+        if (COMMIT_INTERVAL_NS > 0 && slot == append_slot) {
+            final long start = slot;
+            commit_start = System.nanoTime();
+            TIMER.schedule(() -> commit_due(start), COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        long src_addr = value.address() + value.absReadIndex();
+        long dst_addr = temp_buf_addr + (slot % TEMP_SLOTS) * VALUE_LEN;
+        crc_buf.putInt((int) (CRC_HEAD + (slot << 2)), Crc32c.update(Crc32c.update(0, key), src_addr, VALUE_LEN));
         Unsafe.copyMemory(src_addr, dst_addr, VALUE_LEN);
         value.skipRead(VALUE_LEN);
-        temp_buf.position(temp_buf_pos + VALUE_LEN);
-        if (!temp_buf.hasRemaining()) {
-            long st = System.nanoTime();
-            data_channel.write(temp_buf_addr, TEMP_FILE_LEN * VALUE_LEN);
-            data_write_cost += System.nanoTime() - st;
-            temp_buf.position(0);
-        }
         index_buf.putLong(key);
         index_buf.putLong(0, index_buf.position());
+        if (key_map != null) {
+            int old = key_map.put(key, (int) slot);
+            if (old != -1) {
+                data_channel.release_slot(old);
+            }
+        }
+        write_slot = ++slot;
+        if (slot % TEMP_FILE_LEN == 0 || (COMMIT_INTERVAL_NS > 0 && System.nanoTime() - commit_start >= COMMIT_INTERVAL_NS)) {
+            append(slot);
+        }
+        return true;
+    }
+
+    /**
+     * hand the values up to end to the io engine as one group commit, they
+     * never cross a part of the temp ring. A group is committed when its part
+     * is full, when it is older than COMMIT_INTERVAL at the next write or by
+     * the timer, and before a read, flush or close.
+     */
+    private void append(long end) {
+        long start = append_slot;
+        if (start == end) {
+            return;
+        }
+        append_slot = end;
+        final long address = temp_buf_addr + (start % TEMP_SLOTS) * VALUE_LEN;
+        final int  len     = (int) (end - start) * VALUE_LEN;
+        io.execute(() -> {
+            long st = System.nanoTime();
+            data_channel.write(address, len);
+            if (SYNC_BATCH) {
+                sync(end);
+            }
+            long cost = System.nanoTime() - st;
+            commit_count++;
+            commit_bytes += len;
+            commit_cost += cost;
+            commit_max = Math.max(commit_max, cost);
+            synchronized (persist_lock) {
+                persist_slot = end;
+                persist_lock.notifyAll();
+            }
+        });
+    }
+
+    // the group from start is still open after COMMIT_INTERVAL, no write came to commit it
+    private synchronized void commit_due(long start) {
+        if (p_init && append_slot == start && write_slot > start) {
+            append(write_slot);
+        }
+    }
+
+    /**
+     * sync the groups committed so far in the background, whatever the sync
+     * policy, so that a kill verifies the records from a recent checkpoint on
+     * and not from the last flush or close. The blocking io engine runs the
+     * sync right here on the timer under the monitor, so the timer is only on
+     * by default with the thread engine.
+     */
+    private synchronized void checkpoint() {
+        long end = append_slot;
+        if (!p_init || end == checkpoint_slot) {
+            return;
+        }
+        checkpoint_slot = end;
+        io.execute(() -> {
+            // the open job ran before, it may have failed
+            if (opened) {
+                sync(end);
+            }
+        });
+    }
+
+    // the values before end are written, with their keys and crc they are the checkpoint of the next verify
+    private void sync(long end) {
+        long st = System.nanoTime();
+        data_channel.sync();
+        index_buf.force();
+        crc_buf.force();
+        crc_buf.putLong(CRC_CHECKED, end);
+        sync_count++;
+        sync_cost += System.nanoTime() - st;
     }
 
-    public void read(Channel ch, long pos, ByteBuf val) {
-        flush();
-        data_channel.read(ch, val, pos, READ_BLOCK_SIZE);
+    private void wait_persist(long slot) {
+        synchronized (persist_lock) {
+            for (; persist_slot < slot; ) {
+                try {
+                    persist_lock.wait();
+                } catch (InterruptedException e) {
+                    printException(e);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void read(Channel ch, int action, long pos, boolean compress) {
+        read(ch, action, pos, READ_BLOCK_SIZE, compress);
+    }
+
+    /**
+     * read len bytes from pos, the clients ask for a single value this way when
+     * their gets do not look sequential. With compress the response may carry
+     * the bytes in the lz4 block format.
+     */
+    public void read(Channel ch, int action, long pos, int len, boolean compress) {
+        append(write_slot);
+        io.execute(() -> data_channel.read(io, ch, action, pos, len, compress));
         if (DEBUG && inst_id == 0) {
             log("read data: " + pos);
         }
     }
 
-    public void close() {
+    /**
+     * answer the value of the key, or an empty response when it is not in the
+     * partition. The key map is built from the index on the first get and
+     * kept up to date by the writes after.
+     */
+    public void get(Channel ch, int action, long key) {
+        LongIntMap key_map = this.key_map;
+        if (key_map == null) {
+            key_map = build_key_map();
+        }
+        int slot = key_map.get(key);
+        append(write_slot);
+        if (slot == -1) {
+            // through the io engine as well, the responses must keep the request order
+            io.execute(() -> data_channel.read(io, ch, action, 0, 0, false));
+        } else {
+            long pos = 1L * slot * VALUE_LEN;
+            io.execute(() -> data_channel.read(io, ch, action, pos, VALUE_LEN, false));
+        }
+    }
+
+    private LongIntMap build_key_map() {
+        long       st        = System.nanoTime();
+        ByteBuffer index_buf = this.index_buf;
+        int        records   = index_records();
+        LongIntMap key_map   = new LongIntMap(records);
+        for (int i = 0; i < records; i++) {
+            int old = key_map.put(index_buf.getLong(KEY_LEN + (i << 3)), i);
+            if (old != -1) {
+                data_channel.release_slot(old);
+            }
+        }
+        this.key_map = key_map;
+        log("build key map: " + key_map.size() + ", cost(ms): " + ((System.nanoTime() - st) / 1000_000) + ", inst_id: " + inst_id);
+        return key_map;
+    }
+
+    // the records durable at the last sync, the checkpoint a verify starts from
+    long checked_records() {
+        return crc_buf.getLong(CRC_CHECKED);
+    }
+
+    /**
+     * the slots of the segment whose keys were not written again, as offsets
+     * in the segment. The caller holds the monitor, the segment is sealed.
+     */
+    int[] live_slots(int segment) {
+        ByteBuffer index_buf = this.index_buf;
+        LongIntMap key_map   = this.key_map;
+        int        start     = segment * SEGMENT_SLOTS;
+        int        end       = Math.min(start + SEGMENT_SLOTS, index_records());
+        int[]      live      = new int[Math.max(end - start, 0)];
+        int        count     = 0;
+        for (int slot = start; slot < end; slot++) {
+            if (key_map.get(index_buf.getLong(KEY_LEN + (slot << 3))) == slot) {
+                live[count++] = slot - start;
+            }
+        }
+        return count == live.length ? live : Arrays.copyOf(live, count);
+    }
+
+    public void read_batch(Channel ch, int action, long[] pos, int count) {
+        append(write_slot);
+        io.execute(() -> data_channel.read_batch(io, ch, action, pos, count));
+        if (DEBUG && inst_id == 0) {
+            log("read batch data: " + count);
+        }
+    }
+
+    /**
+     * close the partition, then run done on the event loop of ch. The last
+     * group commit, the sync, the sorted index and the unmapping are io jobs,
+     * a later init of the partition waits for them.
+     */
+    public void close(Channel ch, Runnable done) {
         if (!p_init) {
             log("not init, ignore close");
+            done.run();
             return;
         }
         p_init = false;
-        log("close partition: " + inst_id + ", write cost: " + (data_write_cost / 1000_000));
+        append(write_slot);
+        if (checkpoint_task != null) {
+            checkpoint_task.cancel(false);
+            checkpoint_task = null;
+        }
+        if (data_channel instanceof SegmentChannel) {
+            ((SegmentChannel) data_channel).stop_compact();
+        }
+        IoEngine io = this.io;
+        io.execute(() -> {
+            close_files();
+            io.complete(ch, done);
+        });
+        io.close();
+    }
+
+    private void close_files() {
+        if (!opened) {
+            return;
+        }
+        opened = false;
+        // the clean flag goes to disk after all the records it vouches for
+        sync(write_slot);
+        crc_buf.putLong(CRC_CLEAN, 1);
+        crc_buf.force();
+        log("close partition: " + inst_id + ", " + commit_stat());
+        if (INDEX_SORTED) {
+            build_sorted();
+        }
+        release_sorted();
+        key_map = null;
         release_mapped_buf(index_buf);
         release_mapped_buf(temp_buf);
+        release_mapped_buf(crc_buf);
         Util.close(index_channel);
+        Util.close(temp_channel);
+        Util.close(crc_channel);
         Util.close(data_channel);
     }
 
-    public void flush() {
-        ByteBuffer temp_buf = this.temp_buf;
-        if (temp_buf.position() > 0) {
+    /**
+     * commit the values written so far, then run done on the event loop of
+     * ch once they are in the data file, and synced with commit.sync=flush
+     */
+    public void flush(Channel ch, Runnable done) {
+        if (append_slot < write_slot) {
             log("flush partition: " + inst_id);
-            this.data_channel.write(temp_buf_addr, temp_buf.position());
-            temp_buf.position(0);
+            append(write_slot);
+        }
+        if (SYNC_FLUSH) {
+            long end = write_slot;
+            io.execute(() -> sync(end));
+        }
+        IoEngine io = this.io;
+        io.execute(() -> io.complete(ch, done));
+    }
+
+    private String commit_stat() {
+        long count = Math.max(commit_count, 1);
+        return "commit: " + commit_count
+                + ", avg bytes: " + (commit_bytes / count)
+                + ", avg cost(us): " + (commit_cost / count / 1000)
+                + ", max cost(us): " + (commit_max / 1000)
+                + ", sync: " + sync_count
+                + ", sync cost(ms): " + (sync_cost / 1000_000);
+    }
+
+    /**
+     * The values of a partition, addressed by slot * VALUE_LEN.
+     * <p>
+     * A block is read into the pool of direct buffers of its channel, so that
+     * several responses of one channel can be in flight together. A buffer is
+     * reused after READ_BUF_POOL further reads of the channel, a client never
+     * has more reads outstanding on one connection than that. A buffer only
+     * grows to a whole block when the channel reads one.
+     * <p>
+     * All the methods run as jobs of the partition {@link IoEngine}, the
+     * responses are written by its completion on the event loop of the channel.
+     */
+    abstract static class DataChannel implements Closeable {
+
+        // the next buffer of the pool, grown to len
+        private int next_read_buf(ChannelCache cache, int len) {
+            int slot = cache.read_buf_next;
+            cache.read_buf_next = (slot + 1) % READ_BUF_POOL;
+            ByteBuffer buf = cache.read_nio_bufs[slot];
+            if (buf == null || buf.capacity() < len) {
+                buf = ByteBuffer.allocateDirect(len <= VALUE_LEN ? VALUE_LEN : READ_BLOCK_SIZE);
+                cache.read_nio_bufs[slot] = buf;
+                cache.read_bufs[slot] = ByteBuf.wrap(buf);
+            }
+            return slot;
+        }
+
+        private ByteBuf read_block(ChannelCache cache, long pos, int len) {
+            int     slot = next_read_buf(cache, len);
+            ByteBuf data = cache.read_bufs[slot];
+            int     read = pread(cache.read_nio_bufs[slot], pos, len);
+            data.readIndex(0);
+            data.writeIndex(read);
+            return data;
+        }
+
+        // len is READ_BLOCK_SIZE at most, a response of len 0 carries no data
+        void read(IoEngine io, Channel ch, int action, long pos, int len, boolean compress) {
+            ChannelCache cache  = (ChannelCache) ch.getAttachment();
+            int          slot   = next_read_buf(cache, len);
+            ByteBuffer   buf    = cache.read_nio_bufs[slot];
+            ByteBuf      data   = cache.read_bufs[slot];
+            int          read   = pread(buf, pos, len);
+            int          packed = compress && read > 0 ? pack(buf, read) : -1;
+            ByteBuf      dst    = ByteBuf.buffer(8);
+            data.readIndex(0);
+            data.writeIndex(packed == -1 ? read : packed);
+            dst.writeByte((byte) action);
+            dst.writeByte((byte) (packed == -1 ? 0 : RES_COMPRESSED));
+            dst.skipWrite(2);
+            dst.writeIntLE(data.readableBytes());
+            io.complete(ch, () -> {
+                if (data.hasReadableBytes()) {
+                    data.retain();
+                    ch.write(dst);
+                    ch.writeAndFlush(data);
+                } else {
+                    ch.writeAndFlush(dst);
+                }
+            });
+        }
+
+        void read_batch(IoEngine io, Channel ch, int action, long[] pos, int count) {
+            ChannelCache cache = (ChannelCache) ch.getAttachment();
+            ByteBuf[]    datas = new ByteBuf[count];
+            ByteBuf   dst   = ByteBuf.buffer(4 + count * 4);
+            dst.writeByte((byte) action);
+            dst.skipWrite(3);
+            for (int i = 0; i < count; i++) {
+                ByteBuf data = read_block(cache, pos[i], READ_BLOCK_SIZE);
+                datas[i] = data;
+                dst.writeIntLE(data.readableBytes());
+            }
+            io.complete(ch, () -> {
+                int last = -1;
+                for (int i = 0; i < count; i++) {
+                    if (datas[i].hasReadableBytes()) {
+                        last = i;
+                    }
+                }
+                if (last == -1) {
+                    ch.writeAndFlush(dst);
+                    return;
+                }
+                ch.write(dst);
+                for (int i = 0; i <= last; i++) {
+                    ByteBuf data = datas[i];
+                    if (data.hasReadableBytes()) {
+                        data.retain();
+                        if (i == last) {
+                            ch.writeAndFlush(data);
+                        } else {
+                            ch.write(data);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * compress the len bytes of buf in place to the length and the lz4
+         * block, the bytes stay raw if they do not get shorter
+         *
+         * @return the length of the compressed bytes, -1 if buf is raw
+         */
+        private static int pack(ByteBuffer buf, int len) {
+            Lz4Buf lz4_buf = LZ4_BUF.get();
+            byte[] raw     = lz4_buf.raw;
+            byte[] packed  = lz4_buf.packed;
+            buf.clear();
+            buf.get(raw, 0, len);
+            int n = 4 + lz4_buf.lz4.compress(raw, 0, len, packed, 4);
+            if (n >= len) {
+                return -1;
+            }
+            put_int_le(packed, len, 0);
+            buf.clear();
+            buf.put(packed, 0, n);
+            return n;
+        }
+
+        /**
+         * read len bytes from pos into buf from position 0
+         *
+         * @return the bytes read, less than len at the end of the data
+         */
+        abstract int pread(ByteBuffer buf, long pos, int len);
+
+        abstract void write(long address, int len);
+
+        abstract void sync();
+
+        abstract void set_write_pos(long pos);
+
+        abstract long file_size();
+
+        // the value at slot is garbage, its key was written again
+        void release_slot(int slot) {}
+
+        // false if the value at slot was dropped as garbage, it is not checked then
+        boolean stored(long slot) {
+            return true;
         }
+
     }
 
-    static final class DFileChannel implements Closeable {
+    /**
+     * The values of a partition in a single file. The appends go through the
+     * O_DIRECT fd, its file offset is owned by the writer alone. The reads are
+     * positional (pread) on a separate channel and never move that offset, so
+     * they can be served between the appends.
+     */
+    static final class DFileChannel extends DataChannel {
 
-        final long    read_buf_addr = Native.posix_memalign_allocate(READ_BLOCK_SIZE, 1024 * 4);
-        final ByteBuf read_buf      = ByteBuf.wrap(read_buf_addr, READ_BLOCK_SIZE);
-        final int     fd;
+        final FileChannel read_channel;
+        final int         fd;
 
         long write_pos;
 
         DFileChannel(File file) {
             this.fd = Native.open(file.getAbsolutePath(), Native.O_RDWR | Native.O_CREAT | Native.O_DIRECT, 0755);
             this.write_pos = Native.file_length(fd);
+            // also the channel to fdatasync the appends of the O_DIRECT fd
+            this.read_channel = open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
         }
 
-        void read(Channel ch, ByteBuf dst, long pos, int len) {
-            Native.lseek(fd, pos, Native.SEEK_SET);
-            ByteBuf data = this.read_buf;
-            int     read = Native.read(fd, read_buf_addr, READ_BLOCK_SIZE);
-            data.readIndex(0);
-            data.writeIndex(read);
-            data.retain();
-            dst.skipWrite(3);
-            dst.writeIntLE(read);
-            dst.retain();
-            ch.write(dst);
-            ch.writeAndFlush(data);
+        @Override
+        int pread(ByteBuffer buf, long pos, int len) {
+            buf.clear();
+            buf.limit(len);
+            try {
+                for (; buf.hasRemaining(); ) {
+                    if (read_channel.read(buf, pos + buf.position()) == -1) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                printException(e);
+            }
+            return buf.position();
         }
 
+        @Override
         void write(long address, int len) {
             int write_len = Native.write(fd, address, len);
             write_pos += write_len;
         }
 
+        @Override
+        void sync() {
+            try {
+                read_channel.force(false);
+            } catch (IOException e) {
+                printException(e);
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
         void set_write_pos(long pos) {
             this.write_pos = pos;
             Native.lseek(fd, pos, Native.SEEK_SET);
         }
 
+        @Override
         long file_size() {
             return write_pos;
         }
 
         @Override
         public void close() {
-            Unsafe.free(read_buf_addr);
+            Util.close(read_channel);
             Native.close(fd);
         }
 
     }
 
+    // the lz4 codec and its buffers of an io thread, a block is decompressed into raw or compressed into packed
+    static final class Lz4Buf {
+
+        final Lz4    lz4    = new Lz4();
+        final byte[] raw    = new byte[Math.max(READ_BLOCK_SIZE, SegmentChannel.COMPRESS_BLOCK)];
+        final byte[] packed = new byte[4 + Lz4.max_length(raw.length)];
+
+    }
+
+    /**
+     * A mapped sorted index. The init sort responses are written straight
+     * from the mapping, so it is unmapped only when the store and all the
+     * channels it was sent on let it go. A channel lets it go at its next
+     * frame or when it closes, a client reads a response before it sends the
+     * next request on the connection, the read buffers rely on that as well.
+     */
+    static final class SortedFile {
+
+        final MappedByteBuffer buf;
+        final SortedIndex      index;
+        // the store holds one
+        int                    refs = 1;
+
+        SortedFile(MappedByteBuffer buf, SortedIndex index) {
+            this.buf = buf;
+            this.index = index;
+        }
+
+        synchronized void retain() {
+            refs++;
+        }
+
+        synchronized void release() {
+            if (--refs == 0) {
+                release_mapped_buf(buf);
+            }
+        }
+
+    }
+
 }
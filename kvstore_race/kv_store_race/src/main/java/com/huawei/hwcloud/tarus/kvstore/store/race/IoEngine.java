@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.store.race;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.firenio.component.Channel;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
+
+/**
+ * Runs the disk jobs of one partition, the jobs of a partition are executed in
+ * submit order.
+ * <p>
+ * The blocking engine runs a job in place on the event loop. The thread
+ * engine queues it to a dedicated io thread of the partition, and a job that
+ * answers a channel hands the response back to the event loop of that
+ * channel with {@link #complete}.
+ *
+ * @author: wangkai
+ **/
+abstract class IoEngine {
+
+    static IoEngine create(int inst_id) {
+        if (IO_ENGINE_THREAD.equals(IO_ENGINE)) {
+            return new ThreadIoEngine(inst_id);
+        }
+        return new BlockingIoEngine();
+    }
+
+    abstract void execute(Runnable job);
+
+    /**
+     * run the job on the event loop of the channel
+     */
+    abstract void complete(Channel ch, Runnable job);
+
+    /**
+     * stop once the jobs submitted before are done, the caller does not wait
+     * for them
+     */
+    abstract void close();
+
+    /**
+     * wait until the engine stopped after {@link #close}
+     */
+    abstract void await_close();
+
+    static final class BlockingIoEngine extends IoEngine {
+
+        @Override
+        void execute(Runnable job) {
+            job.run();
+        }
+
+        @Override
+        void complete(Channel ch, Runnable job) {
+            job.run();
+        }
+
+        @Override
+        void close() {}
+
+        @Override
+        void await_close() {}
+
+    }
+
+    static final class ThreadIoEngine extends IoEngine implements Runnable {
+
+        final BlockingQueue<Runnable> jobs = new LinkedBlockingQueue<>();
+        final Thread                  thread;
+
+        boolean running = true;
+
+        ThreadIoEngine(int inst_id) {
+            this.thread = new Thread(this, "kvs-io-" + inst_id);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        void execute(Runnable job) {
+            jobs.offer(job);
+        }
+
+        @Override
+        void complete(Channel ch, Runnable job) {
+            ch.getEventLoop().submit(job);
+        }
+
+        @Override
+        void close() {
+            jobs.offer(() -> running = false);
+        }
+
+        @Override
+        void await_close() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                printException(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            for (; running; ) {
+                try {
+                    jobs.take().run();
+                } catch (Throwable e) {
+                    printException(e);
+                }
+            }
+        }
+
+    }
+
+}
@@ -38,13 +38,11 @@ public class KVStoreServer implements KVStoreCheck {
         String v = Util.getStringProperty("kvs.clear.data");
         if ("0".equals(v)) {
             log("clean data.....");
-            File   file = new File(PATH);
-            File[] fs   = file.listFiles();
-            if (fs != null) {
-                for (File f : fs) {
-                    log("clean data: " + f.getAbsolutePath());
-                }
-                FileUtil.cleanDirectory(file);
+            for (String path : DATA_PATHS) {
+                clean_dir(path);
+            }
+            if (INDEX_PATH != null) {
+                clean_dir(INDEX_PATH);
             }
             log("clean data finish....");
         }
@@ -52,7 +50,7 @@ public class KVStoreServer implements KVStoreCheck {
         group.setEnableMemoryPool(false);
         group.setIdleTime(Integer.MAX_VALUE);
         group.setChannelReadBuffer(DATA_1M);
-        group.setEventLoopSize(KV_INSTANCE);
+        group.setEventLoopSize(SERVER_LOOPS);
         group.setWriteBuffers(1);
         ChannelAcceptor context = new ChannelAcceptor(group, PORT);
         context.addProtocolCodec(new ServerCodec());
@@ -72,8 +70,10 @@ public class KVStoreServer implements KVStoreCheck {
             @Override
             public void channelClosed(Channel ch) {
                 ChannelCache cache = (ChannelCache) ch.getAttachment();
+                ServerCodec.release_sorted(cache);
                 Util.release(cache.send_buf);
                 Util.release(cache.send_buf);
+                Util.release(cache.ack_buf);
                 log("ch close: " + ch.toString());
             }
         });
@@ -89,4 +89,15 @@ public class KVStoreServer implements KVStoreCheck {
         return 0.1;
     }
 
+    private static void clean_dir(String path) {
+        File   file = new File(path);
+        File[] fs   = file.listFiles();
+        if (fs != null) {
+            for (File f : fs) {
+                log("clean data: " + f.getAbsolutePath());
+            }
+            FileUtil.cleanDirectory(file);
+        }
+    }
+
 }
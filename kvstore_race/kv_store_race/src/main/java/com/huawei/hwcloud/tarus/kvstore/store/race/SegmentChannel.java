@@ -0,0 +1,752 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.store.race;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.firenio.common.Util;
+import com.firenio.component.Native;
+import com.huawei.hwcloud.tarus.kvstore.service.race.Lz4;
+import com.huawei.hwcloud.tarus.kvstore.store.race.EngineKVStoreRace.DataChannel;
+import com.huawei.hwcloud.tarus.kvstore.store.race.EngineKVStoreRace.Lz4Buf;
+
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
+import static com.huawei.hwcloud.tarus.kvstore.service.race.Util.*;
+
+/**
+ * The values of a partition in segments of SEGMENT_SIZE, the files of the
+ * segments are in the dir &lt;inst&gt;_data. Segment n holds the slots from
+ * n * SEGMENT_SLOTS on, the clients address the values by slot, so a value
+ * never moves to another segment.
+ * <p>
+ * The last segment is appended to through an O_DIRECT fd like the single
+ * data file, the segments before it are sealed. A sealed segment whose
+ * garbage, the values of keys written again later, reaches COMPACT_RATIO
+ * percent of it is rewritten by the {@link Compactor} to n.compact: a
+ * bitmap of the live slots and their values only. A slot not in the bitmap
+ * reads as zeros, no client looks its key up there any more. The new file
+ * is moved in place atomically and swapped in by a job of the partition
+ * {@link IoEngine}, the reads before it go to the old file.
+ * <p>
+ * A slot is never reused: the index and the crc file are sized by
+ * DATA_COUNT, so a partition takes DATA_COUNT writes in all, overwrites
+ * included. Compaction frees data disk only.
+ * <p>
+ * With kvs.compress=lz4 a sealed segment is rewritten even without garbage,
+ * in blocks of the 64 slots of a long of the bitmap, each compressed with
+ * {@link Lz4} and stored raw if that does not make it shorter. The header
+ * maps each block to its offset and stored length, a block without live
+ * slots is not stored at all.
+ *
+ * @author: wangkai
+ **/
+final class SegmentChannel extends DataChannel {
+
+    static final String  RAW_SUFFIX       = ".data";
+    static final String  COMPACT_SUFFIX   = ".compact";
+    static final String  TMP_SUFFIX       = ".tmp";
+    static final long    COMPACT_MAGIC    = 0x4b5653434f4d5031L;
+    static final long    COMPRESSED_MAGIC = 0x4b5653434f4d5032L;
+    static final boolean LZ4              = COMPRESS_LZ4.equals(COMPRESS);
+    static final int     BITMAP_LONGS     = SEGMENT_SLOTS >>> 6;
+    // magic, segment and live count, then the bitmap
+    static final int     SEALED_HEAD      = 16 + BITMAP_LONGS * 8;
+    // the values start at a page
+    static final int     COMPACT_DATA     = (SEALED_HEAD + DATA_4K - 1) / DATA_4K * DATA_4K;
+    // a compressed block holds the slots of a long of the bitmap
+    static final int     COMPRESS_BLOCK   = 64 * VALUE_LEN;
+    // an offset and a stored length of each block follow the bitmap, the blocks start at a page
+    static final int     COMPRESSED_DATA  = (SEALED_HEAD + BITMAP_LONGS * 12 + DATA_4K - 1) / DATA_4K * DATA_4K;
+    static final byte[]  ZEROS            = new byte[VALUE_LEN];
+
+    final EngineKVStoreRace store;
+    final File              dir;
+    final int               inst_id;
+
+    // copy on write, replaced by the io jobs and read by the compactor
+    volatile Segment[] segments;
+    // the segment of the fd, the segments before it are sealed
+    volatile int       active;
+    long               write_pos;
+    int                fd = -1;
+    // guarded by the monitor of the store
+    int[]              dead       = new int[16];
+    int[]              dead_bases = new int[16];
+    boolean[]          compressed = new boolean[16];
+    boolean            closed;
+    long               compact_count;
+    long               compact_bytes;
+
+    SegmentChannel(EngineKVStoreRace store, File dir) {
+        this.store = store;
+        this.dir = dir;
+        this.inst_id = store.inst_id;
+        if (dir.isFile()) {
+            throw new RuntimeException("data file is not segmented: " + dir.getAbsolutePath());
+        }
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        int    count = 0;
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // a compaction that did not finish
+                    f.delete();
+                } else if (name.endsWith(RAW_SUFFIX) || name.endsWith(COMPACT_SUFFIX)) {
+                    count = Math.max(count, segment_of(name) + 1);
+                }
+            }
+        }
+        Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            File raw     = segment_file(i, RAW_SUFFIX);
+            File compact = segment_file(i, COMPACT_SUFFIX);
+            if (compact.exists()) {
+                // moved in place before the raw segment was deleted
+                raw.delete();
+                SealedSegment seg = open_sealed(compact);
+                grow_dead(i);
+                dead_bases[i] = SEGMENT_SLOTS - seg.live;
+                compressed[i] = seg instanceof CompressedSegment;
+                segments[i] = seg;
+            } else if (raw.exists()) {
+                segments[i] = new RawSegment(raw);
+            } else {
+                throw new RuntimeException("segment lost: " + raw.getAbsolutePath());
+            }
+        }
+        this.segments = segments;
+        if (count == 0) {
+            this.write_pos = 0;
+        } else {
+            this.write_pos = 1L * (count - 1) * SEGMENT_SIZE + segments[count - 1].size();
+        }
+        this.active = (int) (write_pos / SEGMENT_SIZE);
+        log("open segments: " + count + ", size: " + write_pos + ", inst_id: " + inst_id);
+    }
+
+    private static int segment_of(String name) {
+        return Integer.parseInt(name.substring(0, name.indexOf('.')));
+    }
+
+    private File segment_file(int segment, String suffix) {
+        return new File(dir, segment + suffix);
+    }
+
+    // the two kinds of sealed segments are told apart by their magic
+    private static SealedSegment open_sealed(File file) {
+        ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (; magic.hasRemaining(); ) {
+                if (channel.read(magic, magic.position()) == -1) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            printException(e);
+            throw new RuntimeException(e);
+        }
+        if (!magic.hasRemaining() && magic.getLong(0) == COMPRESSED_MAGIC) {
+            return new CompressedSegment(file);
+        }
+        return new CompactSegment(file);
+    }
+
+    void start_compact() {
+        if (COMPACT_RATIO > 0 || LZ4) {
+            Compactor.register(this);
+        }
+    }
+
+    // the caller holds the monitor of the store, no swap job is queued after it
+    void stop_compact() {
+        closed = true;
+        Compactor.unregister(this);
+    }
+
+    @Override
+    void release_slot(int slot) {
+        int segment = slot / SEGMENT_SLOTS;
+        grow_dead(segment);
+        dead[segment]++;
+    }
+
+    // dead_bases are the dead slots of a segment when it was compacted, they are not in its file
+    private void grow_dead(int segment) {
+        if (segment >= dead.length) {
+            int len = Math.max(segment + 1, dead.length * 2);
+            dead = Arrays.copyOf(dead, len);
+            dead_bases = Arrays.copyOf(dead_bases, len);
+            compressed = Arrays.copyOf(compressed, len);
+        }
+    }
+
+    @Override
+    boolean stored(long slot) {
+        Segment[] segments = this.segments;
+        int       segment  = (int) (slot / SEGMENT_SLOTS);
+        if (segment < segments.length && segments[segment] instanceof SealedSegment) {
+            return ((SealedSegment) segments[segment]).is_live((int) (slot % SEGMENT_SLOTS));
+        }
+        return true;
+    }
+
+    @Override
+    int pread(ByteBuffer buf, long pos, int len) {
+        Segment[] segments = this.segments;
+        buf.clear();
+        buf.limit(len);
+        try {
+            for (; buf.hasRemaining(); ) {
+                long p       = pos + buf.position();
+                int  segment = (int) (p / SEGMENT_SIZE);
+                if (segment >= segments.length) {
+                    break;
+                }
+                int limit = buf.limit();
+                int n     = (int) Math.min(limit - buf.position(), SEGMENT_SIZE - p % SEGMENT_SIZE);
+                buf.limit(buf.position() + n);
+                int read = segments[segment].read(buf, p % SEGMENT_SIZE);
+                buf.limit(limit);
+                if (read < n) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            printException(e);
+        }
+        return buf.position();
+    }
+
+    @Override
+    void write(long address, int len) {
+        for (; len > 0; ) {
+            int segment = (int) (write_pos / SEGMENT_SIZE);
+            if (fd == -1 || segment != active) {
+                open_active(segment);
+            }
+            int n         = (int) Math.min(len, SEGMENT_SIZE - write_pos % SEGMENT_SIZE);
+            int write_len = Native.write(fd, address, n);
+            if (write_len <= 0) {
+                throw new RuntimeException("write segment failed: " + segment + ", inst_id: " + inst_id);
+            }
+            write_pos += write_len;
+            address += write_len;
+            len -= write_len;
+        }
+    }
+
+    // the appends go on in the segment of write_pos, the one before it is synced when it is sealed
+    private void open_active(int segment) {
+        if (fd != -1) {
+            if (segment > active) {
+                segments[active].sync();
+            }
+            Native.close(fd);
+            fd = -1;
+        }
+        Segment[] segments = this.segments;
+        if (segment >= segments.length) {
+            segments = Arrays.copyOf(segments, segment + 1);
+            for (int i = this.segments.length; i <= segment; i++) {
+                segments[i] = new RawSegment(segment_file(i, RAW_SUFFIX));
+            }
+            this.segments = segments;
+        }
+        File file = segment_file(segment, RAW_SUFFIX);
+        this.fd = Native.open(file.getAbsolutePath(), Native.O_RDWR | Native.O_CREAT | Native.O_DIRECT, 0755);
+        Native.lseek(fd, write_pos % SEGMENT_SIZE, Native.SEEK_SET);
+        this.active = segment;
+    }
+
+    @Override
+    void sync() {
+        Segment[] segments = this.segments;
+        if (active < segments.length) {
+            segments[active].sync();
+        }
+    }
+
+    // the segments after pos are dropped, the appends go on at pos
+    @Override
+    void set_write_pos(long pos) {
+        int       segment  = (int) (pos / SEGMENT_SIZE);
+        Segment[] segments = this.segments;
+        if (segment < segments.length && segments[segment] instanceof SealedSegment && pos % SEGMENT_SIZE != 0) {
+            throw new RuntimeException("append to compacted segment: " + segment + ", inst_id: " + inst_id);
+        }
+        int keep = pos % SEGMENT_SIZE == 0 ? segment : segment + 1;
+        if (keep < segments.length) {
+            for (int i = keep; i < segments.length; i++) {
+                log("drop segment: " + i + ", inst_id: " + inst_id);
+                segments[i].delete();
+            }
+            this.segments = Arrays.copyOf(segments, keep);
+        }
+        if (fd != -1) {
+            Native.close(fd);
+            fd = -1;
+        }
+        this.write_pos = pos;
+        this.active = segment;
+    }
+
+    @Override
+    long file_size() {
+        return write_pos;
+    }
+
+    /**
+     * the sealed segment with the most garbage over COMPACT_RATIO, else with
+     * lz4 the first sealed segment not compressed yet, -1 if none. Only the
+     * segments below the crc checkpoint are picked, a verify after an unclean
+     * stop may cut the partition back to it and a compacted segment is never
+     * appended to again. The caller holds the monitor of the store.
+     */
+    int pick_compact() {
+        if (closed) {
+            return -1;
+        }
+        Segment[] segments = this.segments;
+        long      checked  = store.checked_records() / SEGMENT_SLOTS;
+        int       sealed   = (int) Math.min(Math.min(active, segments.length), checked);
+        int       best     = -1;
+        long      best_pct = COMPACT_RATIO - 1;
+        for (int i = 0; COMPACT_RATIO > 0 && i < sealed && i < dead.length; i++) {
+            int stored  = SEGMENT_SLOTS - dead_bases[i];
+            int garbage = dead[i] - dead_bases[i];
+            if (stored == 0 || garbage == 0) {
+                continue;
+            }
+            long pct = garbage * 100L / stored;
+            if (pct > best_pct) {
+                best = i;
+                best_pct = pct;
+            }
+        }
+        if (best == -1 && LZ4) {
+            for (int i = 0; i < sealed; i++) {
+                if (i >= compressed.length || !compressed[i]) {
+                    return i;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * rewrite the segment with the live slots only, they were taken under the
+     * monitor of the store. Runs on the compactor thread, the reads of the old
+     * file go on until the swap job of the io engine.
+     */
+    void compact(int segment, int[] live, ByteBuffer buf) throws IOException {
+        long    st  = System.nanoTime();
+        Segment old = segments[segment];
+        File    tmp = segment_file(segment, COMPACT_SUFFIX + TMP_SUFFIX);
+        File    dst = segment_file(segment, COMPACT_SUFFIX);
+        tmp.delete();
+        try (FileChannel out = open(tmp, EngineKVStoreRace.FC_OPS)) {
+            long[] bits = new long[BITMAP_LONGS];
+            for (int slot : live) {
+                bits[slot >>> 6] |= 1L << slot;
+            }
+            if (LZ4) {
+                write_compressed(out, old, segment, bits, live.length);
+            } else {
+                write_compact(out, old, segment, bits, live, buf);
+            }
+            out.force(true);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        // the rename must be durable before the swap job unlinks the raw segment, the move is
+        // done without the monitor of the store, a segment moved in after close is read at the next open
+        Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sync_dir(dir);
+        SealedSegment seg;
+        synchronized (store) {
+            if (closed) {
+                return;
+            }
+            seg = LZ4 ? new CompressedSegment(dst) : new CompactSegment(dst);
+            long reclaimed = old.disk_size() - seg.disk_size();
+            grow_dead(segment);
+            dead_bases[segment] = SEGMENT_SLOTS - live.length;
+            compressed[segment] = LZ4;
+            compact_count++;
+            compact_bytes += reclaimed;
+            store.io.execute(() -> {
+                Segment[] segments = Arrays.copyOf(this.segments, this.segments.length);
+                segments[segment] = seg;
+                this.segments = segments;
+                old.close();
+                if (old instanceof RawSegment) {
+                    old.delete();
+                }
+            });
+        }
+        log("compact segment: " + segment + ", live: " + live.length + ", cost(ms): " + ((System.nanoTime() - st) / 1000_000) + ", inst_id: " + inst_id);
+    }
+
+    private static ByteBuffer sealed_head(int len, long magic, int segment, int live, long[] bits) {
+        ByteBuffer head = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        head.putLong(magic);
+        head.putInt(segment);
+        head.putInt(live);
+        for (long b : bits) {
+            head.putLong(b);
+        }
+        return head;
+    }
+
+    private void write_compact(FileChannel out, Segment old, int segment, long[] bits, int[] live, ByteBuffer buf) throws IOException {
+        ByteBuffer head = sealed_head(COMPACT_DATA, COMPACT_MAGIC, segment, live.length, bits);
+        head.clear();
+        write_fully(out, head, 0);
+        long pos     = COMPACT_DATA;
+        int  max_run = buf.capacity() / VALUE_LEN;
+        for (int i = 0; i < live.length; ) {
+            // a run of adjacent live slots is read at once
+            int j = i + 1;
+            for (; j < live.length && live[j] == live[j - 1] + 1 && j - i < max_run; ) {
+                j++;
+            }
+            buf.clear();
+            buf.limit((j - i) * VALUE_LEN);
+            if (old.read(buf, 1L * live[i] * VALUE_LEN) < buf.limit()) {
+                throw new IOException("short read of segment: " + segment + ", inst_id: " + inst_id);
+            }
+            buf.flip();
+            pos += write_fully(out, buf, pos);
+            i = j;
+        }
+    }
+
+    // the dead slots of a block are zeroed before it is compressed, the block table is written last
+    private void write_compressed(FileChannel out, Segment old, int segment, long[] bits, int live) throws IOException {
+        ByteBuffer head   = sealed_head(COMPRESSED_DATA, COMPRESSED_MAGIC, segment, live, bits);
+        Lz4        lz4    = new Lz4();
+        byte[]     block  = new byte[COMPRESS_BLOCK];
+        byte[]     packed = new byte[Lz4.max_length(COMPRESS_BLOCK)];
+        long       pos    = COMPRESSED_DATA;
+        long       bytes  = 0;
+        for (int i = 0; i < BITMAP_LONGS; i++) {
+            long b   = bits[i];
+            int  len = 0;
+            head.putLong(pos);
+            if (b != 0) {
+                ByteBuffer buf = ByteBuffer.wrap(block);
+                if (old.read(buf, 1L * i * COMPRESS_BLOCK) < COMPRESS_BLOCK) {
+                    throw new IOException("short read of segment: " + segment + ", inst_id: " + inst_id);
+                }
+                for (int s = 0; s < 64; s++) {
+                    if ((b & (1L << s)) == 0) {
+                        Arrays.fill(block, s * VALUE_LEN, (s + 1) * VALUE_LEN, (byte) 0);
+                    }
+                }
+                int n = lz4.compress(block, 0, COMPRESS_BLOCK, packed, 0);
+                buf = n < COMPRESS_BLOCK ? ByteBuffer.wrap(packed, 0, n) : ByteBuffer.wrap(block);
+                len = buf.remaining();
+                pos += write_fully(out, buf, pos);
+                bytes += Long.bitCount(b) * VALUE_LEN;
+            }
+            head.putInt(len);
+        }
+        head.clear();
+        write_fully(out, head, 0);
+        if (DEBUG) {
+            log("compress segment: " + segment + ", live(KB): " + (bytes / 1024) + ", stored(KB): " + ((pos - COMPRESSED_DATA) / 1024) + ", inst_id: " + inst_id);
+        }
+    }
+
+    private static long write_fully(FileChannel out, ByteBuffer buf, long pos) throws IOException {
+        long start = pos;
+        for (; buf.hasRemaining(); ) {
+            pos += out.write(buf, pos);
+        }
+        return pos - start;
+    }
+
+    String segment_stat() {
+        Segment[] segments   = this.segments;
+        int       compacted  = 0;
+        int       compressed = 0;
+        for (Segment s : segments) {
+            if (s instanceof SealedSegment) {
+                compacted++;
+            }
+            if (s instanceof CompressedSegment) {
+                compressed++;
+            }
+        }
+        return "segments: " + segments.length + ", compacted: " + compacted + ", compressed: " + compressed + ", compact: " + compact_count + ", reclaimed(MB): " + (compact_bytes / DATA_1M);
+    }
+
+    // the last io job of the store, stop_compact ran before under its monitor
+    @Override
+    public void close() {
+        closed = true;
+        Compactor.unregister(this);
+        log("close segments: " + segment_stat() + ", inst_id: " + inst_id);
+        if (fd != -1) {
+            Native.close(fd);
+            fd = -1;
+        }
+        for (Segment s : segments) {
+            s.close();
+        }
+    }
+
+    abstract static class Segment {
+
+        final File        file;
+        final FileChannel channel;
+
+        Segment(File file) {
+            this.file = file;
+            this.channel = open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+
+        /**
+         * read the bytes of the segment from pos on into buf up to its limit
+         *
+         * @return the bytes read, less at the end of a raw segment
+         */
+        abstract int read(ByteBuffer buf, long pos) throws IOException;
+
+        // the bytes of the slots in the segment
+        long size() {
+            return channel_size(channel);
+        }
+
+        long disk_size() {
+            return channel_size(channel);
+        }
+
+        // len bytes from pos, or null if the file is shorter
+        ByteBuffer read_head(long pos, int len) {
+            ByteBuffer head = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                for (; head.hasRemaining(); ) {
+                    if (channel.read(head, pos + head.position()) == -1) {
+                        return null;
+                    }
+                }
+            } catch (IOException e) {
+                printException(e);
+                throw new RuntimeException(e);
+            }
+            head.flip();
+            return head;
+        }
+
+        void sync() {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                printException(e);
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() {
+            Util.close(channel);
+        }
+
+        void delete() {
+            close();
+            file.delete();
+        }
+
+    }
+
+    static final class RawSegment extends Segment {
+
+        RawSegment(File file) {
+            super(file);
+        }
+
+        @Override
+        int read(ByteBuffer buf, long pos) throws IOException {
+            int start = buf.position();
+            for (; buf.hasRemaining(); ) {
+                if (channel.read(buf, pos + buf.position() - start) == -1) {
+                    break;
+                }
+            }
+            return buf.position() - start;
+        }
+
+    }
+
+    // a segment rewritten by the compactor, the slots not in its bitmap read as zeros
+    abstract static class SealedSegment extends Segment {
+
+        final long[] bits = new long[BITMAP_LONGS];
+        final int    live;
+
+        SealedSegment(File file, long magic) {
+            super(file);
+            ByteBuffer head = read_head(0, SEALED_HEAD);
+            if (head == null || head.getLong() != magic) {
+                close();
+                throw new RuntimeException("bad compacted segment: " + file.getAbsolutePath());
+            }
+            head.getInt();
+            this.live = head.getInt();
+            for (int i = 0; i < BITMAP_LONGS; i++) {
+                bits[i] = head.getLong();
+            }
+        }
+
+        boolean is_live(int slot) {
+            return (bits[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        // a sealed segment is never appended to
+        @Override
+        long size() {
+            return SEGMENT_SIZE;
+        }
+
+    }
+
+    static final class CompactSegment extends SealedSegment {
+
+        // the live slots before each long of the bitmap
+        final int[] ranks = new int[BITMAP_LONGS];
+
+        CompactSegment(File file) {
+            super(file, COMPACT_MAGIC);
+            int rank = 0;
+            for (int i = 0; i < BITMAP_LONGS; i++) {
+                ranks[i] = rank;
+                rank += Long.bitCount(bits[i]);
+            }
+        }
+
+        // the index of the value of a live slot in the file
+        int rank(int slot) {
+            return ranks[slot >>> 6] + Long.bitCount(bits[slot >>> 6] & ((1L << slot) - 1));
+        }
+
+        @Override
+        int read(ByteBuffer buf, long pos) throws IOException {
+            int  start = buf.position();
+            long end   = pos + buf.remaining();
+            for (long p = pos; p < end; ) {
+                int     slot = (int) (p / VALUE_LEN);
+                boolean live = is_live(slot);
+                int     last = slot + 1;
+                for (; 1L * last * VALUE_LEN < end && is_live(last) == live; ) {
+                    last++;
+                }
+                int n = (int) (Math.min(end, 1L * last * VALUE_LEN) - p);
+                if (live) {
+                    long file_pos = COMPACT_DATA + 1L * rank(slot) * VALUE_LEN + p % VALUE_LEN;
+                    int  limit    = buf.limit();
+                    buf.limit(buf.position() + n);
+                    for (; buf.hasRemaining(); ) {
+                        if (channel.read(buf, file_pos + n - buf.remaining()) == -1) {
+                            throw new IOException("short compacted segment: " + file.getAbsolutePath());
+                        }
+                    }
+                    buf.limit(limit);
+                } else {
+                    for (int r = n; r > 0; r -= VALUE_LEN) {
+                        buf.put(ZEROS, 0, Math.min(r, VALUE_LEN));
+                    }
+                }
+                p += n;
+            }
+            return buf.position() - start;
+        }
+
+    }
+
+    static final class CompressedSegment extends SealedSegment {
+
+        final long[] offsets = new long[BITMAP_LONGS];
+        // 0 if the block has no live slot, COMPRESS_BLOCK if it is stored raw
+        final int[]  lens    = new int[BITMAP_LONGS];
+
+        CompressedSegment(File file) {
+            super(file, COMPRESSED_MAGIC);
+            ByteBuffer table = read_head(SEALED_HEAD, BITMAP_LONGS * 12);
+            if (table == null) {
+                close();
+                throw new RuntimeException("bad compressed segment: " + file.getAbsolutePath());
+            }
+            for (int i = 0; i < BITMAP_LONGS; i++) {
+                offsets[i] = table.getLong();
+                lens[i] = table.getInt();
+            }
+        }
+
+        private void read_fully(ByteBuffer buf, long pos) throws IOException {
+            int start = buf.position();
+            for (; buf.hasRemaining(); ) {
+                if (channel.read(buf, pos + buf.position() - start) == -1) {
+                    throw new IOException("short compressed segment: " + file.getAbsolutePath());
+                }
+            }
+        }
+
+        // a compressed block is decompressed whole into the buffers of the thread
+        @Override
+        int read(ByteBuffer buf, long pos) throws IOException {
+            int  start = buf.position();
+            long end   = pos + buf.remaining();
+            for (long p = pos; p < end; ) {
+                int block = (int) (p / COMPRESS_BLOCK);
+                int off   = (int) (p % COMPRESS_BLOCK);
+                int n     = (int) Math.min(end - p, COMPRESS_BLOCK - off);
+                int len   = lens[block];
+                if (len == 0) {
+                    for (int r = n; r > 0; r -= VALUE_LEN) {
+                        buf.put(ZEROS, 0, Math.min(r, VALUE_LEN));
+                    }
+                } else if (len == COMPRESS_BLOCK) {
+                    int limit = buf.limit();
+                    buf.limit(buf.position() + n);
+                    read_fully(buf, offsets[block] + off);
+                    buf.limit(limit);
+                } else {
+                    Lz4Buf lz4_buf = EngineKVStoreRace.LZ4_BUF.get();
+                    read_fully(ByteBuffer.wrap(lz4_buf.packed, 0, len), offsets[block]);
+                    if (Lz4.decompress(lz4_buf.packed, 0, len, lz4_buf.raw, 0, COMPRESS_BLOCK) != COMPRESS_BLOCK) {
+                        throw new IOException("bad compressed block: " + block + ", " + file.getAbsolutePath());
+                    }
+                    buf.put(lz4_buf.raw, off, n);
+                }
+                p += n;
+            }
+            return buf.position() - start;
+        }
+
+    }
+
+}
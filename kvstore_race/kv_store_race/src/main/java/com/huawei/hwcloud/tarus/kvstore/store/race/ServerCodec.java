@@ -18,10 +18,13 @@ package com.huawei.hwcloud.tarus.kvstore.store.race;
 import java.nio.ByteBuffer;
 
 import com.firenio.buffer.ByteBuf;
+import com.firenio.common.Util;
 import com.firenio.component.Channel;
 import com.firenio.component.Frame;
 import com.firenio.component.NioEventLoop;
 import com.firenio.component.ProtocolCodec;
+import com.huawei.hwcloud.tarus.kvstore.service.race.SortedIndex;
+import com.huawei.hwcloud.tarus.kvstore.store.race.EngineKVStoreRace.SortedFile;
 
 import static com.huawei.hwcloud.tarus.kvstore.service.race.ActionType.*;
 import static com.huawei.hwcloud.tarus.kvstore.service.race.Env.*;
@@ -37,72 +40,333 @@ public class ServerCodec extends ProtocolCodec {
 
     @Override
     public Frame decode(Channel ch, ByteBuf src) {
-        int               header   = src.readUnsignedByte();
-        int               action   = get_action(header);
-        int               ins_id   = get_ins_id(header);
-        ChannelCache      cache    = (ChannelCache) ch.getAttachment();
-        ByteBuf           send_buf = cache.send_buf.clear();
-        EngineKVStoreRace store    = KVStoreServer.INSTANCES[ins_id];
+        ChannelCache cache = (ChannelCache) ch.getAttachment();
+        // the client pipelines set frames, so a single read may carry several of them
+        for (; src.hasReadableBytes(); ) {
+            if (!decode_frame(ch, cache, src)) {
+                break;
+            }
+        }
+        flush_set_ack(ch, cache);
+        return null;
+    }
+
+    private boolean decode_frame(Channel ch, ChannelCache cache, ByteBuf src) {
+        if (cache.batch_remain > 0) {
+            return decode_batch_record(cache, src);
+        }
+        if (src.readableBytes() < FRAME_HEADER) {
+            return false;
+        }
+        // the client read the last response before it sent this frame
+        release_sorted(cache);
+        int magic     = src.readUnsignedByte();
+        int version   = src.readUnsignedByte();
+        int action    = src.readUnsignedByte();
+        int flags     = src.readUnsignedByte();
+        int partition = src.readIntLE();
+        int body_len  = src.readIntLE();
+        if (magic != FRAME_MAGIC || version != FRAME_VERSION || partition < 0 || partition >= KV_INSTANCE || body_len < 0
+                || (action != ACTION_SET_BATCH && body_len > KEY_LEN + VALUE_LEN)) {
+            log("bad frame, magic: " + magic + ", version: " + version + ", partition: " + partition + ", body: " + body_len);
+            Util.close(ch);
+            return false;
+        }
+        // the records of a batch are streamed, any other body is decoded once it is complete
+        if (action == ACTION_SET_BATCH) {
+            if (src.readableBytes() < 4) {
+                src.skipRead(-FRAME_HEADER);
+                return false;
+            }
+            int count = src.readIntLE();
+            if (count < 0 || body_len != 4 + (long) count * (KEY_LEN + VALUE_LEN)) {
+                return bad_body(ch, action, partition, body_len);
+            }
+            cache.batch_partition = partition;
+            cache.batch_remain = count;
+            if (count == 0) {
+                cache.set_ack++;
+                cache.set_action = action;
+            }
+            return true;
+        }
+        if (src.readableBytes() < body_len) {
+            src.skipRead(-FRAME_HEADER);
+            return false;
+        }
+        // a body may be longer than this version reads, the next frame starts after it
+        int               body_end = src.readIndex() + body_len;
+        EngineKVStoreRace store    = KVStoreServer.INSTANCES[partition];
+        boolean           next;
+        if (action == ACTION_SET) {
+            next = decode_set(ch, cache, src, partition, body_len, store);
+        } else {
+            synchronized (store) {
+                next = decode_action(ch, cache, src, action, flags, partition, body_len, store);
+            }
+        }
+        if (next) {
+            src.readIndex(body_end);
+        }
+        return next;
+    }
+
+    private static boolean decode_set(Channel ch, ChannelCache cache, ByteBuf src, int ins_id, int body_len, EngineKVStoreRace store) {
+        if (body_len < KEY_LEN + VALUE_LEN) {
+            return bad_body(ch, ACTION_SET, ins_id, body_len);
+        }
+        write(store, src.readLongLE(), src);
+        cache.set_ack++;
+        cache.set_action = ACTION_SET;
+        return true;
+    }
+
+    // the wait for room in the temp ring blocks on the disk, it is done without the monitor
+    private static void write(EngineKVStoreRace store, long key, ByteBuf src) {
+        for (; ; ) {
+            store.wait_room();
+            synchronized (store) {
+                if (store.write(key, src)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean decode_action(Channel ch, ChannelCache cache, ByteBuf src, int action, int flags, int ins_id, int body_len, EngineKVStoreRace store) {
+        flush_set_ack(ch, cache);
         if (action == ACTION_READ) {
-            if (src.readableBytes() < 11) {
-                log("read data not complete, less than 8 byte: " + src.readableBytes());
-                src.skipRead(-1);
-                return null;
+            if (body_len < 8) {
+                return bad_body(ch, action, ins_id, body_len);
             }
-            src.skipRead(3);
             long pos = src.readLongLE();
-            send_buf.writeByte((byte) header);
-            store.read(ch, pos, send_buf);
-        } else if (action == ACTION_SET) {
-            if (src.readableBytes() < VALUE_LEN + KEY_LEN + 3) {
-                src.skipRead(-1);
-                return null;
-            }
-            src.skipRead(3);
-            long key = src.readLongLE();
-            store.write(key, src);
-            send_buf.writeByte((byte) header);
-            send_buf.retain();
-            ch.writeAndFlush(send_buf);
+            store.read(ch, action, pos, (flags & FRAME_FLAG_COMPRESS) != 0);
+        } else if (action == ACTION_GET) {
+            if (body_len < 8) {
+                return bad_body(ch, action, ins_id, body_len);
+            }
+            store.get(ch, action, src.readLongLE());
+        } else if (action == ACTION_READ_RANGE) {
+            if (body_len < 12) {
+                return bad_body(ch, action, ins_id, body_len);
+            }
+            int  len = src.readIntLE();
+            long pos = src.readLongLE();
+            if (len <= 0 || len > READ_BLOCK_SIZE) {
+                log("read range invalid: " + len + ", inst_id: " + ins_id);
+                Util.close(ch);
+                return false;
+            }
+            store.read(ch, action, pos, len, (flags & FRAME_FLAG_COMPRESS) != 0);
+        } else if (action == ACTION_READ_BATCH) {
+            if (body_len < 4) {
+                return bad_body(ch, action, ins_id, body_len);
+            }
+            int count = src.readIntLE();
+            if (count < 0 || count > READ_BATCH_MAX || body_len < 4 + count * 8) {
+                log("read batch invalid: " + count + ", inst_id: " + ins_id);
+                Util.close(ch);
+                return false;
+            }
+            // the positions go along with the read job, it may run after the next decode
+            long[] read_pos = new long[count];
+            for (int i = 0; i < count; i++) {
+                read_pos[i] = src.readLongLE();
+            }
+            store.read_batch(ch, action, read_pos, count);
         } else if (action == ACTION_INIT) {
             log("received init: " + ins_id);
-            store.init(ins_id);
-            ByteBuffer index_buf     = store.index_buf;
-            int        len           = index_buf.position();
-            ByteBuf    index_buf_buf = ByteBuf.wrap(index_buf);
-            send_buf.writeByte((byte) header);
-            send_buf.skipWrite(3);
-            send_buf.writeInt(len - KEY_LEN);
-            index_buf_buf.readIndex(KEY_LEN);
-            index_buf_buf.writeIndex(len);
-            if (index_buf_buf.hasReadableBytes()) {
-                index_buf_buf.retain();
-                send_buf.retain();
-                ch.write(send_buf);
-                ch.writeAndFlush(index_buf_buf);
-            } else {
-                send_buf.retain();
-                ch.writeAndFlush(send_buf);
-            }
-            log("send init len: " + len + ", inst_id: " + ins_id);
+            store.init(ch, ins_id, () -> send_init(ch, cache, store, ins_id));
+        } else if (action == ACTION_INIT_TAIL) {
+            if (body_len < 12) {
+                return bad_body(ch, action, ins_id, body_len);
+            }
+            int  records = src.readIntLE();
+            long fence   = src.readLongLE();
+            log("received init tail: " + ins_id + ", records: " + records);
+            store.init(ch, ins_id, () -> send_init_tail(ch, cache, store, ins_id, records, fence));
+        } else if (action == ACTION_INIT_SORT) {
+            log("received init sort: " + ins_id);
+            store.init(ch, ins_id, () -> send_init_sort(ch, cache, store, ins_id));
         } else if (action == ACTION_FLUSH) {
             log("received flush: " + ins_id);
-            store.flush();
-            send_buf.writeByte((byte) header);
-            send_buf.retain();
-            ch.writeAndFlush(send_buf);
-            log("send flush finish: " + ins_id);
+            store.flush(ch, () -> {
+                send_action(ch, cache, ACTION_FLUSH);
+                log("send flush finish: " + ins_id);
+            });
         } else if (action == ACTION_CLOSE) {
             log("received close: " + ins_id);
-            store.close();
-            send_buf.writeByte((byte) header);
+            store.close(ch, () -> {
+                send_action(ch, cache, ACTION_CLOSE);
+                log("send close finish: " + ins_id);
+            });
+        } else {
+            log("unknown action: " + action + ", inst_id: " + ins_id);
+        }
+        return true;
+    }
+
+    // the init responses run under the monitor of the store once its io engine opened the partition
+    private static boolean init_failed(Channel ch, EngineKVStoreRace store, int ins_id) {
+        if (store.opened) {
+            return false;
+        }
+        log("init failed, inst_id: " + ins_id);
+        Util.close(ch);
+        return true;
+    }
+
+    private static void send_init(Channel ch, ChannelCache cache, EngineKVStoreRace store, int ins_id) {
+        if (init_failed(ch, store, ins_id)) {
+            return;
+        }
+        ByteBuf    send_buf      = cache.send_buf.clear();
+        ByteBuffer index_buf     = store.index_buf;
+        int        len           = index_buf.position();
+        ByteBuf    index_buf_buf = ByteBuf.wrap(index_buf);
+        send_buf.writeByte((byte) ACTION_INIT);
+        send_buf.skipWrite(3);
+        send_buf.writeInt(len - KEY_LEN);
+        index_buf_buf.readIndex(KEY_LEN);
+        index_buf_buf.writeIndex(len);
+        if (index_buf_buf.hasReadableBytes()) {
+            index_buf_buf.retain();
+            send_buf.retain();
+            ch.write(send_buf);
+            ch.writeAndFlush(index_buf_buf);
+        } else {
             send_buf.retain();
             ch.writeAndFlush(send_buf);
-            log("send close finish: " + ins_id);
+        }
+        log("send init len: " + len + ", inst_id: " + ins_id);
+    }
+
+    private static void send_init_tail(Channel ch, ChannelCache cache, EngineKVStoreRace store, int ins_id, int records, long fence) {
+        if (init_failed(ch, store, ins_id)) {
+            return;
+        }
+        ByteBuf    send_buf  = cache.send_buf.clear();
+        ByteBuffer index_buf = store.index_buf;
+        int        len       = index_buf.position();
+        int        start     = 0;
+        // the client index is reusable only if it is a prefix of ours, its last key is the fence,
+        // a client without index asks for no keys with -1
+        if (records == -1) {
+            start = (len - KEY_LEN) >>> 3;
+        } else if (records > 0 && records <= (len - KEY_LEN) >>> 3 && index_buf.getLong(KEY_LEN + ((records - 1) << 3)) == fence) {
+            start = records;
+        }
+        int     start_pos     = KEY_LEN + (start << 3);
+        ByteBuf index_buf_buf = ByteBuf.wrap(index_buf);
+        send_buf.writeByte((byte) ACTION_INIT_TAIL);
+        send_buf.skipWrite(3);
+        send_buf.writeIntLE(start);
+        send_buf.writeIntLE(len - start_pos);
+        index_buf_buf.readIndex(start_pos);
+        index_buf_buf.writeIndex(len);
+        send_buf.retain();
+        if (index_buf_buf.hasReadableBytes()) {
+            index_buf_buf.retain();
+            ch.write(send_buf);
+            ch.writeAndFlush(index_buf_buf);
         } else {
-            log("unknown action: " + header);
+            ch.writeAndFlush(send_buf);
+        }
+        log("send init tail start: " + start + ", len: " + len + ", inst_id: " + ins_id);
+    }
+
+    private static void send_init_sort(Channel ch, ChannelCache cache, EngineKVStoreRace store, int ins_id) {
+        if (init_failed(ch, store, ins_id)) {
+            return;
+        }
+        // the sorted index as it is on disk, then the keys of the records after it
+        ByteBuf    send_buf   = cache.send_buf.clear();
+        ByteBuffer index_buf  = store.index_buf;
+        SortedFile sorted     = store.retain_sorted();
+        int        len        = index_buf.position();
+        int        sorted_len = sorted == null ? 0 : SortedIndex.length(sorted.index.count());
+        int        tail_pos   = KEY_LEN + ((sorted == null ? 0 : sorted.index.records()) << 3);
+        boolean    has_tail   = len > tail_pos;
+        send_buf.writeByte((byte) ACTION_INIT_SORT);
+        send_buf.skipWrite(3);
+        send_buf.writeIntLE(sorted_len);
+        send_buf.writeIntLE(len - tail_pos);
+        send_buf.retain();
+        if (sorted_len == 0 && !has_tail) {
+            ch.writeAndFlush(send_buf);
+        } else {
+            ch.write(send_buf);
+            if (sorted_len > 0) {
+                ByteBuf sorted_buf = ByteBuf.wrap(sorted.buf);
+                sorted_buf.readIndex(0);
+                sorted_buf.writeIndex(sorted_len);
+                sorted_buf.retain();
+                if (has_tail) {
+                    ch.write(sorted_buf);
+                } else {
+                    ch.writeAndFlush(sorted_buf);
+                }
+            }
+            if (has_tail) {
+                ByteBuf tail_buf = ByteBuf.wrap(index_buf);
+                tail_buf.readIndex(tail_pos);
+                tail_buf.writeIndex(len);
+                tail_buf.retain();
+                ch.writeAndFlush(tail_buf);
+            }
+        }
+        release_sorted(cache);
+        cache.sorted = sorted;
+        log("send init sort: " + sorted_len + ", tail: " + (len - tail_pos) + ", inst_id: " + ins_id);
+    }
+
+    private static void send_action(Channel ch, ChannelCache cache, int action) {
+        ByteBuf send_buf = cache.send_buf.clear();
+        send_buf.writeByte((byte) action);
+        send_buf.retain();
+        ch.writeAndFlush(send_buf);
+    }
+
+    static void release_sorted(ChannelCache cache) {
+        SortedFile sorted = cache.sorted;
+        if (sorted != null) {
+            cache.sorted = null;
+            sorted.release();
+        }
+    }
+
+    private static boolean bad_body(Channel ch, int action, int ins_id, int body_len) {
+        log("bad body of action: " + action + ", len: " + body_len + ", inst_id: " + ins_id);
+        Util.close(ch);
+        return false;
+    }
+
+    // the records of a batch frame are written as they arrive, the batch is acked after its last record
+    private static boolean decode_batch_record(ChannelCache cache, ByteBuf src) {
+        if (src.readableBytes() < VALUE_LEN + KEY_LEN) {
+            return false;
+        }
+        EngineKVStoreRace store = KVStoreServer.INSTANCES[cache.batch_partition];
+        write(store, src.readLongLE(), src);
+        if (--cache.batch_remain == 0) {
+            cache.set_ack++;
+            cache.set_action = ACTION_SET_BATCH;
+        }
+        return true;
+    }
+
+    // one ack byte per set or batch frame, written once for all set frames decoded from the same read
+    private static void flush_set_ack(Channel ch, ChannelCache cache) {
+        int set_ack = cache.set_ack;
+        if (set_ack > 0) {
+            ByteBuf ack_buf = cache.ack_buf.clear();
+            for (int i = 0; i < set_ack; i++) {
+                ack_buf.writeByte((byte) cache.set_action);
+            }
+            cache.set_ack = 0;
+            ack_buf.retain();
+            ch.writeAndFlush(ack_buf);
         }
-        return null;
     }
 
     @Override
@@ -136,8 +400,22 @@ public class ServerCodec extends ProtocolCodec {
     }
 
     static class ChannelCache {
-        final ByteBuf send_buf = ByteBuf.buffer(64);
-        final ByteBuf read_buf = ByteBuf.buffer(1024 * 8);
+        static final int READ_BUF_SIZE = 1024 * 64;
+
+        final ByteBuf      send_buf      = ByteBuf.buffer(64);
+        // the acks of one read, at most one per empty set batch, a header and a count
+        final ByteBuf      ack_buf       = ByteBuf.buffer(READ_BUF_SIZE / (FRAME_HEADER + 4));
+        final ByteBuf      read_buf      = ByteBuf.buffer(READ_BUF_SIZE);
+        // the read responses of the channel, used by the io jobs of its partition only
+        final ByteBuffer[] read_nio_bufs = new ByteBuffer[READ_BUF_POOL];
+        final ByteBuf[]    read_bufs     = new ByteBuf[READ_BUF_POOL];
+        // the sorted index of the last init sort response, mapped until the response is read
+        SortedFile sorted;
+        int read_buf_next;
+        int set_ack;
+        int set_action;
+        int batch_partition;
+        int batch_remain;
     }
 
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 The FireNio Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.huawei.hwcloud.tarus.kvstore.store.race;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import com.firenio.common.Unsafe;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The slicing by 8 crc against the check value of CRC32C, a bitwise crc and,
+ * from java 9 on, java.util.zip.CRC32C. The inputs start at every alignment
+ * and end in a tail shorter than 8 bytes.
+ *
+ * @author: wangkai
+ **/
+public class Crc32cTest {
+
+    static final int[] LENGTHS = {0, 1, 7, 8, 9, 15, 16, 17, 63, 4096, 4096 + 8 + 8 + 3};
+
+    final ByteBuffer buf     = ByteBuffer.allocateDirect(8192);
+    final long       address = Unsafe.address(buf);
+
+    // one bit at a time, the reflected polynomial of Castagnoli
+    static int bitwise(byte[] b, int off, int len) {
+        int c = ~0;
+        for (int i = off; i < off + len; i++) {
+            c ^= b[i] & 0xff;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+            }
+        }
+        return ~c;
+    }
+
+    // the crc of b[off, off + len) copied to the buffer at off
+    int crc(byte[] b, int off, int len) {
+        buf.clear();
+        buf.put(b);
+        return Crc32c.update(0, address + off, len);
+    }
+
+    @Test
+    public void check_value() {
+        byte[] b = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283L, crc(b, 0, b.length) & 0xffffffffL);
+        assertEquals(0xE3069283L, bitwise(b, 0, b.length) & 0xffffffffL);
+    }
+
+    @Test
+    public void against_bitwise() {
+        Random r = new Random(1);
+        byte[] b = new byte[8192];
+        for (int len : LENGTHS) {
+            for (int off = 0; off < 8; off++) {
+                r.nextBytes(b);
+                assertEquals("len: " + len + ", off: " + off, bitwise(b, off, len), crc(b, off, len));
+            }
+        }
+    }
+
+    @Test
+    public void chained_update() {
+        Random r = new Random(2);
+        byte[] b = new byte[8192];
+        r.nextBytes(b);
+        buf.clear();
+        buf.put(b);
+        for (int split = 0; split <= 100; split++) {
+            int first = Crc32c.update(0, address, split);
+            assertEquals("split: " + split, bitwise(b, 0, 100), Crc32c.update(first, address + split, 100 - split));
+        }
+    }
+
+    @Test
+    public void long_update() {
+        Random     r  = new Random(3);
+        ByteBuffer le = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 1000; i++) {
+            long v   = r.nextLong();
+            int  crc = r.nextInt();
+            le.putLong(0, v);
+            buf.clear();
+            buf.put(le.array());
+            assertEquals("v: " + v, Crc32c.update(crc, address, 8), Crc32c.update(crc, v));
+        }
+    }
+
+    @Test
+    public void against_jdk() throws Exception {
+        Checksum jdk;
+        try {
+            jdk = (Checksum) Class.forName("java.util.zip.CRC32C").newInstance();
+        } catch (ClassNotFoundException e) {
+            // java 8
+            jdk = null;
+        }
+        Assume.assumeTrue(jdk != null);
+        Random r = new Random(4);
+        byte[] b = new byte[8192];
+        for (int len : LENGTHS) {
+            for (int off = 0; off < 8; off++) {
+                r.nextBytes(b);
+                jdk.reset();
+                jdk.update(b, off, len);
+                assertEquals("len: " + len + ", off: " + off, jdk.getValue(), crc(b, off, len) & 0xffffffffL);
+            }
+        }
+    }
+
+}